@@ -1,5 +1,22 @@
 var app = angular.module('portal', []);
 
+// admin listings are read one page at a time; the service returns the cursor of the next page in a header
+var pageLimit = 50;
+function loadPage($http, controller, path) {
+  var params = { limit: pageLimit };
+  if (controller.nextCursor) {
+    params.cursor = controller.nextCursor;
+  }
+  $http.get('/api/admin/' + path, { params: params })
+    .success( function(items, status, headers){
+      controller.items = controller.items.concat(angular.fromJson(items));
+      controller.nextCursor = headers('X-Next-Cursor');
+    })
+    .error( function(data, status, headers, config){
+      console.log(status);
+    });
+};
+
 app.controller("NavController", function(){
   this.tab = 5;
   this.selectTab = function(setTab) {
@@ -19,13 +36,12 @@ app.controller("UsersController", [ '$scope', '$rootScope', '$window', '$http',
     get();
   });
   function get() {
-    $http.get(url + 'users/')
-      .success( function(items){
-        controller.items = angular.fromJson(items);
-      })
-      .error( function(data, status, headers, config){
-        console.log(status);
-      });
+    controller.items = [];
+    controller.nextCursor = null;
+    loadPage($http, controller, 'users/');
+  };
+  $scope.more = function() {
+    loadPage($http, controller, 'users/');
   };
   $scope.add = function(item) {
     if (item.role == true) {
@@ -61,13 +77,12 @@ app.controller("UserApplicationsController", [ '$rootScope', '$scope', '$window'
     get();
   });
   function get() {
-    $http.get(url + 'applications/')
-      .success( function(items){
-        controller.items = angular.fromJson(items);
-      })
-      .error( function(data, status, headers, config){
-        console.log(status);
-      });
+    controller.items = [];
+    controller.nextCursor = null;
+    loadPage($http, controller, 'applications/');
+  };
+  $scope.more = function() {
+    loadPage($http, controller, 'applications/');
   };
   $scope.add = function(item) {
     item = angular.toJson(item);
@@ -110,13 +125,12 @@ app.controller("UserSubscriptionsController", [ '$scope', '$rootScope', '$window
     get();
   });
   function get() {
-    $http.get(url + 'subscriptions/')
-      .success( function(items){
-        controller.items = angular.fromJson(items);
-      })
-      .error( function(data, status, headers, config){
-        console.log(status);
-      });
+    controller.items = [];
+    controller.nextCursor = null;
+    loadPage($http, controller, 'subscriptions/');
+  };
+  $scope.more = function() {
+    loadPage($http, controller, 'subscriptions/');
   };
   $scope.delete = function(item) {
     $http.delete(url + 'subscription/' + item.UserId + '/' + item.CreationTimeMilli )
@@ -138,13 +152,12 @@ app.controller("UserSessionsController", [ '$scope', '$rootScope', '$window', '$
     get();
   });
   function get() {
-    $http.get(url + 'sessions/')
-      .success( function(items){
-        controller.items = angular.fromJson(items);
-      })
-      .error( function(data, status, headers, config){
-        console.log(status);
-      });
+    controller.items = [];
+    controller.nextCursor = null;
+    loadPage($http, controller, 'sessions/');
+  };
+  $scope.more = function() {
+    loadPage($http, controller, 'sessions/');
   };
 }]);
 
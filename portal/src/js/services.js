@@ -16,11 +16,12 @@ function AuthorizationProvider($window, settings) {
             });
             break;
           case 'google':
-            provider.google().then( function(authToken) {
+            provider.google().then( function(data) {
+              // prefer the ID token, which the service verifies without calling Google
               authorization = {
                 name: name,
-                token: authToken,
-                header: "GoogleOAuth2"
+                token: data['id_token'] || data['access_token'],
+                header: data['id_token'] ? "GoogleIdToken" : "GoogleOAuth2"
               };
               succeed(authorization); 
             });
@@ -70,8 +71,7 @@ function AuthorizationProvider($window, settings) {
             scope: scopes, 
             immediate: false}, 
             function(data) {
-              access_token = data['access_token'];
-              succeed(access_token);
+              succeed(data);
               console.log('Signed in with Google');
             });
       });
@@ -139,6 +139,12 @@ app.factory('auth', ['$window', '$rootScope', '$http', 'settings', function auth
 
 app.factory('user', ['auth', '$http', '$rootScope', '$window', function userFactory(auth, $http, $rootScope, $window) {
   var user = this;
+  // the service's session token is checked locally, so later API calls skip the third-party provider
+  var useSessionToken = function(identity) {
+    if (identity.sessionToken) {
+      $http.defaults.headers.common.Authorization = 'EntitlementSession ' + identity.sessionToken;
+    }
+  };
   user.getCognitoIdentity = function(authorization) {
     return new Promise( function(succeed, fail) {
       sessionIdentity = angular.fromJson($window.sessionStorage.getItem('cognitoIdentity'));
@@ -146,6 +152,7 @@ app.factory('user', ['auth', '$http', '$rootScope', '$window', function userFact
       console.log("Now: " + now);
       if (sessionIdentity != null && now < sessionIdentity.expires ) {
         console.log('Used cached Cognito Identity: ' + (sessionIdentity.id))
+        useSessionToken(sessionIdentity);
         $rootScope.$broadcast('user:done');
         succeed(sessionIdentity);
       } else {
@@ -153,6 +160,7 @@ app.factory('user', ['auth', '$http', '$rootScope', '$window', function userFact
           .success( function(identity) {
             console.log('Retrieved Cognito Identity: ' + (identity.id))
             $window.sessionStorage.setItem('cognitoIdentity', angular.toJson(identity));
+            useSessionToken(identity);
             $rootScope.$broadcast('user:done');
             succeed(identity);
           } )
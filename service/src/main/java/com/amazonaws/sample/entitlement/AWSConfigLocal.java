@@ -7,6 +7,7 @@ import com.amazonaws.regions.Regions;
 import com.amazonaws.sample.entitlement.authorization.AuthorizationHandler;
 import com.amazonaws.sample.entitlement.authorization.CognitoIdentityAuthorizationHandler;
 import com.amazonaws.sample.entitlement.authorization.LoginWithAmazonOAuth2AuthorizationHandler;
+import com.amazonaws.sample.entitlement.dynamodb.CapacityLimiter;
 import com.amazonaws.services.appstream.AmazonAppStream;
 import com.amazonaws.services.appstream.AppStream;
 import com.amazonaws.services.cognitoidentity.AmazonCognitoIdentityClient;
@@ -14,6 +15,8 @@ import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
 import org.springframework.cloud.aws.context.config.annotation.EnableStackConfiguration;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -40,6 +43,12 @@ public class AWSConfigLocal {
     @Autowired
     Environment env;
 
+    @Autowired
+    CounterService counterService;
+
+    @Autowired
+    GaugeService gaugeService;
+
     @Bean
     public AWSCredentialsProvider awsCredentialsProvider() {
         return new DefaultAWSCredentialsProviderChain();
@@ -57,7 +66,14 @@ public class AWSConfigLocal {
 
     @Bean
     public AmazonDynamoDBClient dynamoDBClient() {
-        return region().createClient(AmazonDynamoDBClient.class, awsCredentialsProvider(), null);
+        AmazonDynamoDBClient client = region().createClient(AmazonDynamoDBClient.class, awsCredentialsProvider(), null);
+        // queue requests to the provisioned capacity of each table instead of having them throttled
+        client.addRequestHandler(new CapacityLimiter(client, counterService, gaugeService,
+                env.getProperty("dynamoDBBurstSeconds", Double.class, 5.0),
+                env.getProperty("dynamoDBBackgroundReserve", Double.class, 0.2),
+                env.getProperty("dynamoDBMaxWaitMilli", Long.class, 10000L),
+                env.getProperty("dynamoDBCapacityRefreshMilli", Long.class, 300000L)));
+        return client;
     }
 
     @Bean
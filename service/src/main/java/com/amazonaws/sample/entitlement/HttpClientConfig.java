@@ -0,0 +1,86 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.sample.entitlement;
+
+import com.amazonaws.sample.entitlement.http.ProviderHttpClient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// dedicated HTTP connection pools and executor for the third-party OAuth2 providers
+@Configuration
+public class HttpClientConfig {
+
+    @Autowired
+    Environment env;
+
+    @Autowired
+    GaugeService gaugeService;
+
+    @Bean(destroyMethod = "close")
+    public ProviderHttpClient loginWithAmazonHttpClient() {
+        return providerHttpClient("amazon");
+    }
+
+    @Bean(destroyMethod = "close")
+    public ProviderHttpClient facebookHttpClient() {
+        return providerHttpClient("facebook");
+    }
+
+    @Bean(destroyMethod = "close")
+    public ProviderHttpClient googleHttpClient() {
+        return providerHttpClient("google");
+    }
+
+    // Runs OAuth2 profile requests concurrently with access token verification. When all threads are busy and the
+    // queue is full the profile request runs on the calling thread, i.e. serially.
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService oauth2ProfileExecutor() {
+        int threads = env.getProperty("oauth2ProfileThreads", Integer.class, 20);
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(env.getProperty("oauth2ProfileQueueSize", Integer.class, 100)),
+                new CustomizableThreadFactory("oauth2-profile-"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    // Each setting can be overridden per provider by prefixing it with the provider name,
+    // e.g. amazonHttpMaxConnections overrides httpMaxConnections for Login with Amazon.
+    private ProviderHttpClient providerHttpClient(String provider) {
+        return new ProviderHttpClient(provider, gaugeService,
+                property(provider, "httpMaxConnections", Integer.class, 50),
+                property(provider, "httpConnectTimeoutMilli", Integer.class, 2000),
+                property(provider, "httpMinReadTimeoutMilli", Integer.class, 1000),
+                property(provider, "httpMaxReadTimeoutMilli", Integer.class, 5000),
+                property(provider, "httpTimeoutMultiplier", Double.class, 3.0),
+                property(provider, "httpLeaseTimeoutMilli", Integer.class, 1000),
+                property(provider, "httpKeepAliveMilli", Long.class, 60000L),
+                property(provider, "httpIdleTimeoutMilli", Long.class, 30000L));
+    }
+
+    private <T> T property(String provider, String name, Class<T> type, T defaultValue) {
+        String providerName = provider + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        return env.getProperty(providerName, type, env.getProperty(name, type, defaultValue));
+    }
+
+}
@@ -16,6 +16,7 @@
 
 package com.amazonaws.sample.entitlement;
 
+import com.amazonaws.sample.entitlement.rs.AdministratorAuthorizationFilter;
 import com.amazonaws.sample.entitlement.rs.JaxRsAdministrationService;
 import com.amazonaws.sample.entitlement.rs.JaxRsEntitlementService;
 import com.amazonaws.sample.entitlement.rs.JaxRsIdentityService;
@@ -31,6 +32,7 @@ public class JerseyConfig extends ResourceConfig {
         register(JaxRsEntitlementService.class);
 		register(JaxRsAdministrationService.class);
 		register(JaxRsIdentityService.class);
+		register(AdministratorAuthorizationFilter.class);
 	}
 }
 
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package com.amazonaws.sample.entitlement;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+// scheduler of the @Scheduled tasks
+@Configuration
+public class SchedulingConfig {
+
+    @Autowired
+    Environment env;
+
+    // Without this bean all tasks share a single thread, so one long scan (archive, known users) delays every other
+    // task. Each task still never overlaps with itself.
+    @Bean(destroyMethod = "shutdown")
+    public ThreadPoolTaskScheduler taskScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(env.getProperty("schedulerThreads", Integer.class, 8));
+        scheduler.setThreadNamePrefix("scheduled-");
+        return scheduler;
+    }
+
+}
@@ -16,6 +16,13 @@ package com.amazonaws.sample.entitlement.authorization;
 
 import com.amazonaws.sample.entitlement.exceptions.AuthorizationException;
 import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Class provides the OAuth2 workflow in the processAuthorization method. Implementations for specific OAuth2 providers
@@ -26,6 +33,14 @@ public abstract class AbstractOAuth2AuthorizationHandler implements Authorizatio
 
     private Logger log = Logger.getLogger(AbstractOAuth2AuthorizationHandler.class.getName());
 
+    // When enabled, providers that need a separate profile request start it in parallel with the access token
+    // verification. The profile is only used once verification succeeded.
+    @Value("${concurrentProfileFetch:false}") private boolean concurrentProfileFetch;
+
+    @Autowired
+    @Qualifier("oauth2ProfileExecutor")
+    private ExecutorService oauth2ProfileExecutor;
+
     /**
      * @param authorization
      *     An authorization string. The first part of the string must match the String returned from getAuthorizationType().
@@ -37,14 +52,22 @@ public abstract class AbstractOAuth2AuthorizationHandler implements Authorizatio
     public Identity processAuthorization(String authorization) throws AuthorizationException {
         String access_token = Util.checkAuthorizationString(getAuthorizationType(), authorization);
         log.info("Authorization string looks valid.");
+        if (concurrentProfileFetch && fetchesProfileSeparately()) {
+            return processAuthorizationConcurrently(access_token);
+        }
         // Verify that the access token is valid and belongs to us.
         // If the access token can be verified and also profile information can be retrieved with one call to the oauth2
         // provider then return an Identity object here, otherwise return null and a separate call will be made
         // in getIdentity to retrieve the profile information and create an Identity object.
         Identity identity = verifyAccessToken(access_token);
         // fetch the profile info from the OAuth provider and return an Identity
-        if (identity == null) {
-            identity = getIdentity(access_token);
+        if (identity == null || identity.getId() == null) {
+            Identity profile = getIdentity(access_token);
+            // keep the token expiry reported by the provider during verification
+            if (identity != null) {
+                profile.setExpires(identity.getExpires());
+            }
+            identity = profile;
         }
 
         return identity;
@@ -57,10 +80,20 @@ public abstract class AbstractOAuth2AuthorizationHandler implements Authorizatio
         return Boolean.FALSE;
     }
 
+    /**
+     * @return true if verifyAccessToken never returns profile information, so that getIdentity is always called.
+     * Handlers that return true can have both requests run concurrently.
+     */
+    boolean fetchesProfileSeparately() {
+        return false;
+    }
+
     /**
      * Given an OAuth2 access token verify that the token is valid, has not expired and was issued for our application.
      * If the access token can be verified and also profile information can be retrieved with one call to the oauth2
-     * provider then return an Identity object here, otherwise return null.
+     * provider then return an Identity object here, otherwise return null. If the provider reports when the access
+     * token expires but returns no profile information, an Identity without an id that only carries the expiry
+     * may be returned instead of null.
      * @param accessToken
      * @return an Identity object if possible, otherwise null
      * @throws AuthorizationException
@@ -81,4 +114,43 @@ public abstract class AbstractOAuth2AuthorizationHandler implements Authorizatio
     Identity getIdentity(String accessToken) throws AuthorizationException {
         throw new UnsupportedOperationException();
     }
+
+    //-------------------------------------------------------------
+    // Methods - Private
+    //-------------------------------------------------------------
+
+    /**
+     * Request the profile on the profile executor while the access token is verified on the calling thread. The
+     * profile request is cancelled and its result discarded if verification fails.
+     */
+    private Identity processAuthorizationConcurrently(String accessToken) throws AuthorizationException {
+        Future<Identity> profile = oauth2ProfileExecutor.submit(() -> getIdentity(accessToken));
+        Identity verified;
+        try {
+            verified = verifyAccessToken(accessToken);
+        } catch (AuthorizationException | RuntimeException e) {
+            profile.cancel(true);
+            throw e;
+        }
+        Identity identity;
+        try {
+            identity = profile.get();
+        } catch (InterruptedException e) {
+            profile.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof AuthorizationException) {
+                throw (AuthorizationException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        if (verified != null) {
+            identity.setExpires(verified.getExpires());
+        }
+        return identity;
+    }
 }
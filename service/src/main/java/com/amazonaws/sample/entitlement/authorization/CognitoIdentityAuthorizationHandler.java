@@ -14,24 +14,36 @@
 
 package com.amazonaws.sample.entitlement.authorization;
 
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.sample.entitlement.cache.ExpiringCache;
 import com.amazonaws.sample.entitlement.exceptions.AuthorizationException;
+import com.amazonaws.sample.entitlement.exceptions.OAuthBadRequestException;
+import com.amazonaws.sample.entitlement.exceptions.OAuthBadTokenException;
 import com.amazonaws.services.cognitoidentity.*;
 import com.amazonaws.services.cognitoidentity.model.GetOpenIdTokenForDeveloperIdentityRequest;
 import com.amazonaws.services.cognitoidentity.model.GetOpenIdTokenForDeveloperIdentityResult;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
 import org.springframework.context.annotation.Primary;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 import java.io.UnsupportedEncodingException;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 /**
  * AuthorizationHandler implementation that uses Amazon CognitoIdentity to authorize a 3rd-party access token.
@@ -56,6 +68,34 @@ public class CognitoIdentityAuthorizationHandler extends AbstractOAuth2Authoriza
     @Autowired
     @Qualifier("google")
     private GoogleOAuth2AuthorizationHandler googleAuthorizationHandler;
+    @Autowired
+    @Qualifier("googleIdToken")
+    private GoogleIdTokenAuthorizationHandler googleIdTokenAuthorizationHandler;
+    @Autowired
+    private CounterService counterService;
+
+    // Third-party identities are cached by a hash of the authorization string so that repeated requests with the
+    // same access token do not call the OAuth2 provider again. Entries never outlive the provider's reported expiry.
+    @Value("${identityCacheMaxSize:10000}") private int identityCacheMaxSize;
+    @Value("${identityCacheTtlSeconds:300}") private long identityCacheTtlSeconds;
+    private ExpiringCache<String, Identity> thirdPartyIdentityCache;
+
+    // Cognito OpenID tokens are cached by developer identifier (the base64 encoded email) and reused until they are
+    // within cognitoTokenRefreshMarginSeconds of expiring. With cognitoTokenRefreshAhead enabled, tokens of users seen
+    // since the last refresh pass are renewed in the background before they reach that margin.
+    @Value("${cognitoTokenCacheMaxSize:10000}") private int cognitoTokenCacheMaxSize;
+    @Value("${cognitoTokenRefreshMarginSeconds:120}") private long cognitoTokenRefreshMarginSeconds;
+    @Value("${cognitoTokenRefreshAhead:false}") private boolean cognitoTokenRefreshAhead;
+    private ExpiringCache<String, Identity> cognitoIdentityCache;
+    private Set<String> recentDeveloperIdentifiers = ConcurrentHashMap.newKeySet();
+
+    // Access tokens rejected by the provider are remembered for a short time so that clients retrying with a stale
+    // token fail locally instead of costing another provider round trip.
+    @Value("${rejectedAuthorizationCacheMaxSize:10000}") private int rejectedAuthorizationCacheMaxSize;
+    @Value("${rejectedAuthorizationCacheTtlSeconds:30}") private long rejectedAuthorizationCacheTtlSeconds;
+    private ExpiringCache<String, AuthorizationException> rejectedAuthorizationCache;
+
+    private ConcurrentHashMap<String, CompletableFuture<Identity>> inFlightAuthorizations = new ConcurrentHashMap<>();
 
     private Map<String, String> cognitoErrorMessages;
 
@@ -72,9 +112,12 @@ public class CognitoIdentityAuthorizationHandler extends AbstractOAuth2Authoriza
     static {
         AUTHORIZATION_TYPES.put("FacebookOAuth2", "graph.facebook.com");
         AUTHORIZATION_TYPES.put("GoogleOAuth2", "www.google.com");
+        AUTHORIZATION_TYPES.put("GoogleIdToken", "accounts.google.com");
         AUTHORIZATION_TYPES.put("AmazonOAuth2", "www.amazon.com");
     }
 
+    private static final long COGNITO_TOKEN_DURATION_MINUTES = 15;
+
     //-------------------------------------------------------------
 
     // Constructors - public
@@ -90,6 +133,16 @@ public class CognitoIdentityAuthorizationHandler extends AbstractOAuth2Authoriza
         cognitoErrorMessages.put("insufficient_scope", "The access token provided does not have access to the required scope.");
     }
 
+    @PostConstruct
+    public void initializeCaches() {
+        thirdPartyIdentityCache = new ExpiringCache<>("identity", identityCacheMaxSize,
+                identityCacheTtlSeconds * 1000, counterService);
+        cognitoIdentityCache = new ExpiringCache<>("cognito", cognitoTokenCacheMaxSize,
+                COGNITO_TOKEN_DURATION_MINUTES * 60 * 1000, counterService);
+        rejectedAuthorizationCache = new ExpiringCache<>("rejected", rejectedAuthorizationCacheMaxSize,
+                rejectedAuthorizationCacheTtlSeconds * 1000, counterService);
+    }
+
     //-------------------------------------------------------------
     // Methods - Package Private
     //-------------------------------------------------------------
@@ -105,7 +158,6 @@ public class CognitoIdentityAuthorizationHandler extends AbstractOAuth2Authoriza
     @Override
     public Identity processAuthorization(String authorization) throws AuthorizationException {
         String authorizationType;
-        Identity thirdPartyIdentity;
         String trimmedAuthorization = authorization.trim();
         try {
             String[] splitString = trimmedAuthorization.split("\\s");
@@ -117,6 +169,124 @@ public class CognitoIdentityAuthorizationHandler extends AbstractOAuth2Authoriza
             throw new AuthorizationException("Don't know how to handle authorization type: " + authorizationType);
         }
         Util.checkAuthorizationString(authorizationType, authorization);
+        String authorizationHash = Util.hashAuthorization(trimmedAuthorization);
+        AuthorizationException rejected = rejectedAuthorizationCache.get(authorizationHash);
+        if (rejected != null) {
+            throw copyOf(rejected);
+        }
+        // Concurrent requests with the same authorization wait for the first one instead of repeating the
+        // third-party and Cognito calls.
+        CompletableFuture<Identity> authorizing = new CompletableFuture<>();
+        CompletableFuture<Identity> inFlight = inFlightAuthorizations.putIfAbsent(authorizationHash, authorizing);
+        if (inFlight != null) {
+            counterService.increment("authorization.coalesced");
+            return awaitAuthorization(inFlight);
+        }
+        try {
+            Identity identity = authorize(authorizationType, authorization, authorizationHash);
+            authorizing.complete(identity);
+            return new Identity(identity);
+        } catch (Throwable t) {
+            authorizing.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlightAuthorizations.remove(authorizationHash, authorizing);
+        }
+    }
+
+    /**
+     * Renew the cached Cognito OpenID tokens of users that authorized since the last call and whose tokens will
+     * reach the refresh margin before the next call. Does nothing unless cognitoTokenRefreshAhead is enabled.
+     * @param intervalMilli time until the next call
+     */
+    public void refreshCognitoTokens(long intervalMilli) {
+        if (!cognitoTokenRefreshAhead) {
+            return;
+        }
+        long refreshBefore = Instant.now().toEpochMilli() + cognitoTokenRefreshMarginSeconds * 1000 + intervalMilli;
+        Set<String> developerIdentifiers = new HashSet<>(recentDeveloperIdentifiers);
+        recentDeveloperIdentifiers.removeAll(developerIdentifiers);
+        for (String base64EncEmail : developerIdentifiers) {
+            Identity cognitoIdentity = cognitoIdentityCache.get(base64EncEmail);
+            if (cognitoIdentity != null && cognitoIdentity.getExpires() > refreshBefore) {
+                continue;
+            }
+            try {
+                getOpenIdTokenForDeveloperIdentity(base64EncEmail);
+            } catch (AmazonServiceException e) {
+                log.warn("Could not refresh Cognito OpenID token: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public Boolean shouldAlwaysEntitle() {
+        return null;
+    }
+
+    @Override
+    String getAuthorizationType() {
+        return "CognitoIdentity";
+    }
+
+    @Override
+    Identity getIdentity(String accessToken) throws AuthorizationException {
+        return new Identity("invalid");
+    }
+
+    /**
+     * Verify that the access token is valid and belongs to us.
+     * @param accessToken Login with Amazon access token
+     * @throws AuthorizationException
+     */
+    @Override
+    Identity verifyAccessToken(String accessToken) throws AuthorizationException {
+        return new Identity("invalid");
+    }
+
+    //-------------------------------------------------------------
+    // Methods - Private
+    //-------------------------------------------------------------
+
+    /**
+     * Authorize a third-party access token and exchange the third-party identity for a Cognito identity.
+     */
+    private Identity authorize(String authorizationType, String authorization, String authorizationHash)
+            throws AuthorizationException {
+        Identity thirdPartyIdentity;
+        Identity cachedIdentity = thirdPartyIdentityCache.get(authorizationHash);
+        if (cachedIdentity != null) {
+            thirdPartyIdentity = new Identity(cachedIdentity);
+        } else {
+            try {
+                thirdPartyIdentity = processThirdPartyAuthorization(authorizationType, authorization);
+            } catch (OAuthBadTokenException | OAuthBadRequestException e) {
+                rejectedAuthorizationCache.put(authorizationHash, e);
+                throw e;
+            }
+            cacheThirdPartyIdentity(authorizationHash, thirdPartyIdentity);
+        }
+        try {
+            String base64EncEmail = Base64.getEncoder().withoutPadding().encodeToString(thirdPartyIdentity.getEmail().getBytes("utf-8"));
+            Identity cognitoIdentity = cognitoIdentityCache.get(base64EncEmail);
+            if (cognitoIdentity == null || isCloseToExpiry(cognitoIdentity)) {
+                cognitoIdentity = getOpenIdTokenForDeveloperIdentity(base64EncEmail);
+            }
+            if (cognitoTokenRefreshAhead) {
+                recentDeveloperIdentifiers.add(base64EncEmail);
+            }
+            thirdPartyIdentity.setId(cognitoIdentity.getId());
+            thirdPartyIdentity.setToken(cognitoIdentity.getToken());
+            thirdPartyIdentity.setExpires(cognitoIdentity.getExpires());
+        }  catch (UnsupportedEncodingException e) {
+            throw new AuthorizationException("Don't know how to handle authorization.");
+        }
+        return thirdPartyIdentity;
+    }
+
+    private Identity processThirdPartyAuthorization(String authorizationType, String authorization)
+            throws AuthorizationException {
+        Identity thirdPartyIdentity;
         // Verify that the access token is valid and belongs to us.
         // If the access token can be verified and also profile information can be retrieved with one call to the oauth2
         // provider then return an Identity object here, otherwise return null and a separate call will be made
@@ -129,6 +299,9 @@ public class CognitoIdentityAuthorizationHandler extends AbstractOAuth2Authoriza
             case "GoogleOAuth2":
                 thirdPartyIdentity = googleAuthorizationHandler.processAuthorization(authorization);
                 break;
+            case "GoogleIdToken":
+                thirdPartyIdentity = googleIdTokenAuthorizationHandler.processAuthorization(authorization);
+                break;
             case "AmazonOAuth2":
                 thirdPartyIdentity = loginWithAmazonAuthorizationHandler.processAuthorization(authorization);
                 log.info("Email from Amazon: " + thirdPartyIdentity.getEmail());
@@ -136,45 +309,62 @@ public class CognitoIdentityAuthorizationHandler extends AbstractOAuth2Authoriza
             default:
                 throw new AuthorizationException("Don't know how to handle authorization.");
         }
-        try {
-            Instant fifteenMinutesFromNow = Instant.now().plus(15, ChronoUnit.MINUTES);
-            String base64EncEmail = Base64.getEncoder().withoutPadding().encodeToString(thirdPartyIdentity.getEmail().getBytes("utf-8"));
-            GetOpenIdTokenForDeveloperIdentityRequest req = new GetOpenIdTokenForDeveloperIdentityRequest();
-            req.setIdentityPoolId(awsCognitoIdentityPool);
-            req.addLoginsEntry(awsCognitoDeveloperProviderName, base64EncEmail);
-            GetOpenIdTokenForDeveloperIdentityResult res = cognitoIdentityClient.getOpenIdTokenForDeveloperIdentity(req);
-            thirdPartyIdentity.setId(res.getIdentityId());
-            thirdPartyIdentity.setToken(res.getToken());
-            thirdPartyIdentity.setExpires(fifteenMinutesFromNow.toEpochMilli());
-        }  catch (UnsupportedEncodingException e) {
-            throw new AuthorizationException("Don't know how to handle authorization.");
-        }
         return thirdPartyIdentity;
     }
 
-    @Override
-    public Boolean shouldAlwaysEntitle() {
-        return null;
+    private Identity getOpenIdTokenForDeveloperIdentity(String base64EncEmail) {
+        Instant expires = Instant.now().plus(COGNITO_TOKEN_DURATION_MINUTES, ChronoUnit.MINUTES);
+        GetOpenIdTokenForDeveloperIdentityRequest req = new GetOpenIdTokenForDeveloperIdentityRequest();
+        req.setIdentityPoolId(awsCognitoIdentityPool);
+        req.addLoginsEntry(awsCognitoDeveloperProviderName, base64EncEmail);
+        GetOpenIdTokenForDeveloperIdentityResult res = cognitoIdentityClient.getOpenIdTokenForDeveloperIdentity(req);
+        Identity cognitoIdentity = new Identity(res.getIdentityId());
+        cognitoIdentity.setToken(res.getToken());
+        cognitoIdentity.setExpires(expires.toEpochMilli());
+        cognitoIdentityCache.put(base64EncEmail, cognitoIdentity, expires.toEpochMilli() - Instant.now().toEpochMilli());
+        return cognitoIdentity;
     }
 
-    @Override
-    String getAuthorizationType() {
-        return "CognitoIdentity";
+    private boolean isCloseToExpiry(Identity cognitoIdentity) {
+        return cognitoIdentity.getExpires() - Instant.now().toEpochMilli() < cognitoTokenRefreshMarginSeconds * 1000;
     }
 
-    @Override
-    Identity getIdentity(String accessToken) throws AuthorizationException {
-        return new Identity("invalid");
+    /**
+     * Cache a copy of the third-party identity, before it is changed by the Cognito call, for the configured time to
+     * live or until the provider's reported access token expiry, whichever comes first.
+     */
+    private void cacheThirdPartyIdentity(String authorizationHash, Identity thirdPartyIdentity) {
+        long ttlMilli = thirdPartyIdentityCache.getDefaultTtlMilli();
+        if (thirdPartyIdentity.getExpires() != null) {
+            ttlMilli = Math.min(ttlMilli, thirdPartyIdentity.getExpires() - Instant.now().toEpochMilli());
+        }
+        thirdPartyIdentityCache.put(authorizationHash, new Identity(thirdPartyIdentity), ttlMilli);
     }
 
     /**
-     * Verify that the access token is valid and belongs to us.
-     * @param accessToken Login with Amazon access token
-     * @throws AuthorizationException
+     * @return a new exception of the same type, message and WWW-Authenticate header as a cached rejection
      */
-    @Override
-    Identity verifyAccessToken(String accessToken) throws AuthorizationException {
-        return new Identity("invalid");
+    private AuthorizationException copyOf(AuthorizationException rejected) {
+        if (rejected instanceof OAuthBadRequestException) {
+            return new OAuthBadRequestException(rejected.getMessage(), rejected.getAuthenticateHeader());
+        }
+        return new OAuthBadTokenException(rejected.getMessage(), rejected.getAuthenticateHeader());
     }
 
-}
\ No newline at end of file
+    private Identity awaitAuthorization(CompletableFuture<Identity> inFlight) throws AuthorizationException {
+        try {
+            return new Identity(inFlight.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AuthorizationException("Interrupted while waiting for authorization.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof AuthorizationException) {
+                throw (AuthorizationException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw (RuntimeException) e.getCause();
+        }
+    }
+}
@@ -18,11 +18,10 @@ package com.amazonaws.sample.entitlement.authorization;
 import com.amazonaws.sample.entitlement.exceptions.AuthorizationException;
 import com.amazonaws.sample.entitlement.exceptions.OAuthBadRequestException;
 import com.amazonaws.sample.entitlement.exceptions.OAuthBadTokenException;
-import com.amazonaws.sample.entitlement.http.AllStatusesContentResponseHandler;
-import com.amazonaws.sample.entitlement.http.ResponseContent;
+import com.amazonaws.sample.entitlement.http.ProviderHttpClient;
+import com.amazonaws.sample.entitlement.http.ProviderResponse;
+import com.amazonaws.sample.entitlement.http.ProviderResponseHandler;
 import com.amazonaws.services.cognitoidentity.AmazonCognitoIdentityClient;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.fluent.Request;
@@ -42,7 +41,6 @@ import java.net.URLEncoder;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -61,6 +59,10 @@ public class FacebookOAuth2AuthorizationHandler extends AbstractOAuth2Authorizat
     @Qualifier("configuration")
     private Properties cognitoProperties;
 
+    @Autowired
+    @Qualifier("facebookHttpClient")
+    private ProviderHttpClient httpClient;
+
     private Logger log = Logger.getLogger(FacebookOAuth2AuthorizationHandler.class.getName());
 
 /*    @Autowired
@@ -109,21 +111,18 @@ public class FacebookOAuth2AuthorizationHandler extends AbstractOAuth2Authorizat
     @Override
     Identity verifyAccessToken(String accessToken) throws AuthorizationException {
         try {
-            ResponseContent r = Request.Get("https://graph.facebook.com/app?"
+            ProviderResponse r = httpClient.execute(Request.Get("https://graph.facebook.com/app?"
                     + "access_token=" + URLEncoder.encode(accessToken, "UTF-8")
                     // + "&"
                     // + "appsecret_proof=" + URLEncoder.encode(hmacOAuth2Token, "UTF-8")
-                )
-                    .execute()
-                    .handleResponse(new AllStatusesContentResponseHandler());
+                ),
+                    new ProviderResponseHandler());
 
             int statusCode = r.getStatusCode();
 
-            Map<String, Object> m = new ObjectMapper().readValue(r.getContent("{}"), new TypeReference<Object>(){});
-
             if (statusCode == HttpStatus.SC_OK) {
                 // For Facebook compare the "id" field against the client id (app id for facebook)
-                if (!this.getOauthClientId().equals(m.get("id"))) {
+                if (!this.getOauthClientId().equals(r.getId())) {
                     // the access token is valid but it does not belong to us
                     throw new OAuthBadTokenException("access token is invalid", AUTHORIZATION_TYPE);
                 }
@@ -131,7 +130,7 @@ public class FacebookOAuth2AuthorizationHandler extends AbstractOAuth2Authorizat
                 return null;
             }
             if (statusCode == HttpStatus.SC_BAD_REQUEST) {
-                throw new OAuthBadRequestException(buildErrorMessageFromResponse(m, statusCode), AUTHORIZATION_TYPE);
+                throw new OAuthBadRequestException(buildErrorMessageFromResponse(r, statusCode), AUTHORIZATION_TYPE);
             }
             if (statusCode >= 500) {
                 throw new RuntimeException(PROVIDER_NAME + " encountered an error. Status code: " + statusCode);
@@ -153,23 +152,20 @@ public class FacebookOAuth2AuthorizationHandler extends AbstractOAuth2Authorizat
     Identity getIdentity(String accessToken) throws AuthorizationException {
         try {
             // exchange the access token for user profile
-            ResponseContent r = Request.Get("https://graph.facebook.com/v2.3/me?access_token="
-                    + URLEncoder.encode(accessToken, "UTF-8"))
-                    .execute()
-                    .handleResponse(new AllStatusesContentResponseHandler());
+            ProviderResponse r = httpClient.execute(Request.Get("https://graph.facebook.com/v2.3/me?access_token="
+                    + URLEncoder.encode(accessToken, "UTF-8")),
+                    new ProviderResponseHandler());
 
             int statusCode = r.getStatusCode();
 
-            Map<String, Object> m = new ObjectMapper().readValue(r.getContent("{}"), new TypeReference<Object>(){});
-
             if (statusCode == HttpStatus.SC_OK) {
-                if (!m.containsKey("email")) {
+                if (r.getEmail() == null) {
                     throw new RuntimeException("Expected response to include email but it does not.");
                 }
-                return new Identity(m.get("id").toString(), m.get("email").toString());
+                return new Identity(r.getId(), r.getEmail());
             }
             if (statusCode == HttpStatus.SC_BAD_REQUEST) {
-                throw new OAuthBadRequestException(buildErrorMessageFromResponse(m, statusCode), AUTHORIZATION_TYPE);
+                throw new OAuthBadRequestException(buildErrorMessageFromResponse(r, statusCode), AUTHORIZATION_TYPE);
             }
             if (statusCode >= 500) {
                 throw new RuntimeException(PROVIDER_NAME + " encountered an error. Status code: " + statusCode);
@@ -185,6 +181,11 @@ public class FacebookOAuth2AuthorizationHandler extends AbstractOAuth2Authorizat
         return AUTHORIZATION_TYPE;
     }
 
+    @Override
+    boolean fetchesProfileSeparately() {
+        return true;
+    }
+
     String getOauthClientId() {
         return cognitoProperties.getProperty("loginWithFacebookOAuthClientId");
     }
@@ -193,29 +194,28 @@ public class FacebookOAuth2AuthorizationHandler extends AbstractOAuth2Authorizat
     // Methods - Private
     //-------------------------------------------------------------
 
-    private String buildErrorMessageFromResponse(Map<String, Object> m, int statusCode) {
+    private String buildErrorMessageFromResponse(ProviderResponse r, int statusCode) {
         StringBuilder message = new StringBuilder();
-        Map errorMap = (Map) m.get("error");
 
-        if (errorMap == null) {
+        if (!r.hasErrorObject()) {
             message.append("Bad ");
             message.append(PROVIDER_NAME);
             message.append(" request.");
         } else {
-            if (errorMap.containsKey("message")) {
-                message.append(errorMap.get("message"));
+            if (r.getMessage() != null) {
+                message.append(r.getMessage());
             }
-            if (errorMap.containsKey("type")) {
+            if (r.getErrorType() != null) {
                 message.append(" Type: ");
-                message.append(errorMap.get("type"));
+                message.append(r.getErrorType());
             }
-            if (errorMap.containsKey("code")) {
+            if (r.getErrorCode() != null) {
                 message.append(" Code: ");
-                message.append(errorMap.get("code"));
+                message.append(r.getErrorCode());
             }
-            if (errorMap.containsKey("error_subcode")) {
+            if (r.getErrorSubcode() != null) {
                 message.append(" Error Subcode: ");
-                message.append(errorMap.get("code"));
+                message.append(r.getErrorSubcode());
             }
         }
 
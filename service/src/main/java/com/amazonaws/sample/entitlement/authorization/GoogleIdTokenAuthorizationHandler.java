@@ -0,0 +1,260 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.amazonaws.sample.entitlement.authorization;
+
+
+import com.amazonaws.sample.entitlement.exceptions.AuthorizationException;
+import com.amazonaws.sample.entitlement.exceptions.OAuthBadTokenException;
+import com.amazonaws.sample.entitlement.http.ProviderHttpClient;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.fluent.Request;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifies Google Sign-In ID tokens (signed JWTs) locally instead of calling a Google API for every authorization.
+ *
+ * The signature is checked against Google's JSON Web Key Set, which is loaded at startup and refreshed in the
+ * background from googleJwksUri. A token signed with a key that is not in the set reloads the set at once, at most
+ * every googleJwksMinRefreshIntervalMilli, so that keys Google has just started to use are accepted. The URI may point
+ * to a local file (file:...) so that verification works without network access. The iss, aud and exp claims are
+ * checked against Google's issuer names, loginWithGoogleClientId and the current time.
+ */
+@Component
+@Qualifier("googleIdToken")
+public class GoogleIdTokenAuthorizationHandler extends AbstractOAuth2AuthorizationHandler {
+
+    /**
+     * loginWithGoogleClientId is required. ID tokens must have been issued to this client id.
+     */
+
+    @Autowired
+    @Qualifier("configuration")
+    private Properties cognitoProperties;
+
+    @Autowired
+    @Qualifier("googleHttpClient")
+    private ProviderHttpClient httpClient;
+
+    @Value("${googleJwksUri:https://www.googleapis.com/oauth2/v3/certs}") private String googleJwksUri;
+    @Value("${googleIdTokenClockSkewSeconds:60}") private long googleIdTokenClockSkewSeconds;
+    @Value("${googleJwksMinRefreshIntervalMilli:60000}") private long googleJwksMinRefreshIntervalMilli;
+
+    // replaced as a whole on every refresh, so readers always see a complete key set
+    private volatile JsonWebKeySet keySet;
+    // time of the last reload caused by an unknown key id, in epoch milliseconds
+    private final AtomicLong unknownKeyRefreshMilli = new AtomicLong();
+
+    private ObjectMapper mapper = new ObjectMapper();
+
+    private Logger log = Logger.getLogger(GoogleIdTokenAuthorizationHandler.class.getName());
+
+    //-------------------------------------------------------------
+    // Constants
+    //-------------------------------------------------------------
+
+    /**
+     * The authorization string provided to {@link #processAuthorization(String)} must start with this value.
+     */
+    static final String AUTHORIZATION_TYPE = "GoogleIdToken";
+    static final String PROVIDER_NAME = "Google Sign-In";
+
+    private static final Set<String> ISSUERS = new HashSet<>(Arrays.asList(
+            "accounts.google.com", "https://accounts.google.com"));
+
+    //-------------------------------------------------------------
+    // Methods - Public
+    //-------------------------------------------------------------
+
+    @PostConstruct
+    public void initializeKeys() {
+        refreshKeys();
+    }
+
+    /**
+     * Reload the key set from googleJwksUri. If the key set cannot be loaded the previous one is kept.
+     */
+    public void refreshKeys() {
+        try {
+            JsonWebKeySet keys = loadKeys();
+            keySet = keys;
+            log.info("Loaded " + keys.size() + " " + PROVIDER_NAME + " keys from " + googleJwksUri);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not load " + PROVIDER_NAME + " keys from " + googleJwksUri + ": " + e.getMessage());
+        }
+    }
+
+    //-------------------------------------------------------------
+    // Methods - Package Private
+    //-------------------------------------------------------------
+
+    /**
+     * Verify the signature and claims of a Google ID token.
+     * @param idToken a Google ID token
+     * @return an Identity with the subject and email of the token, expiring with the token
+     * @throws AuthorizationException
+     */
+    @Override
+    Identity verifyAccessToken(String idToken) throws AuthorizationException {
+        String[] parts = idToken.split("\\.");
+        if (parts.length != 3) {
+            throw new OAuthBadTokenException("Malformed " + PROVIDER_NAME + " ID token.", AUTHORIZATION_TYPE);
+        }
+        JsonNode header;
+        JsonNode claims;
+        byte[] signature;
+        try {
+            header = mapper.readTree(Base64.getUrlDecoder().decode(parts[0]));
+            claims = mapper.readTree(Base64.getUrlDecoder().decode(parts[1]));
+            signature = Base64.getUrlDecoder().decode(parts[2]);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new OAuthBadTokenException("Malformed " + PROVIDER_NAME + " ID token.", AUTHORIZATION_TYPE);
+        }
+
+        if (!"RS256".equals(header.path("alg").asText())) {
+            throw new OAuthBadTokenException("Unsupported " + PROVIDER_NAME + " ID token algorithm.", AUTHORIZATION_TYPE);
+        }
+        JsonWebKeySet keys = keySet;
+        if (keys == null) {
+            throw new RuntimeException(PROVIDER_NAME + " keys are not available.");
+        }
+        PublicKey key = keys.getKey(header.path("kid").asText());
+        if (key == null && refreshKeysForUnknownKey()) {
+            key = keySet.getKey(header.path("kid").asText());
+        }
+        if (key == null) {
+            throw new OAuthBadTokenException(PROVIDER_NAME + " ID token is signed with an unknown key.", AUTHORIZATION_TYPE);
+        }
+        if (!verifySignature(key, parts[0] + "." + parts[1], signature)) {
+            throw new OAuthBadTokenException("Invalid " + PROVIDER_NAME + " ID token signature.", AUTHORIZATION_TYPE);
+        }
+
+        if (!ISSUERS.contains(claims.path("iss").asText())) {
+            throw new OAuthBadTokenException(PROVIDER_NAME + " ID token has an unexpected issuer.", AUTHORIZATION_TYPE);
+        }
+        if (!isAudience(claims.path("aud"), getOauthClientId())) {
+            throw new OAuthBadTokenException(PROVIDER_NAME + " ID token was not issued for this application.",
+                    AUTHORIZATION_TYPE);
+        }
+        long expiresMilli = claims.path("exp").asLong(0) * 1000;
+        if (expiresMilli + googleIdTokenClockSkewSeconds * 1000 <= Instant.now().toEpochMilli()) {
+            throw new OAuthBadTokenException(PROVIDER_NAME + " ID token has expired.", AUTHORIZATION_TYPE);
+        }
+        if (!claims.hasNonNull("sub") || !claims.hasNonNull("email")
+                || !claims.path("email_verified").asBoolean(true)) {
+            throw new OAuthBadTokenException(PROVIDER_NAME + " ID token does not include a verified email.",
+                    AUTHORIZATION_TYPE);
+        }
+
+        Identity identity = new Identity(claims.get("sub").asText(), claims.get("email").asText());
+        identity.setExpires(expiresMilli);
+        return identity;
+    }
+
+    @Override
+    String getAuthorizationType() {
+        return AUTHORIZATION_TYPE;
+    }
+
+    String getOauthClientId() {
+        return cognitoProperties.getProperty("loginWithGoogleClientId");
+    }
+
+    //-------------------------------------------------------------
+    // Methods - Private
+    //-------------------------------------------------------------
+
+    /**
+     * Reload the key set unless it was reloaded for an unknown key within googleJwksMinRefreshIntervalMilli.
+     * @return true if the key set was reloaded
+     */
+    private boolean refreshKeysForUnknownKey() {
+        long now = Instant.now().toEpochMilli();
+        long last = unknownKeyRefreshMilli.get();
+        if (now - last < googleJwksMinRefreshIntervalMilli || !unknownKeyRefreshMilli.compareAndSet(last, now)) {
+            return false;
+        }
+        refreshKeys();
+        return true;
+    }
+
+    private JsonWebKeySet loadKeys() throws IOException {
+        URI uri = URI.create(googleJwksUri);
+        if ("http".equals(uri.getScheme()) || "https".equals(uri.getScheme())) {
+            return httpClient.execute(Request.Get(uri), response -> {
+                int statusCode = response.getStatusLine().getStatusCode();
+                if (statusCode != HttpStatus.SC_OK) {
+                    throw new IOException("Unanticipated response. Status code: " + statusCode);
+                }
+                try (InputStream content = response.getEntity().getContent()) {
+                    return JsonWebKeySet.parse(content);
+                }
+            });
+        }
+        try (InputStream content = uri.toURL().openStream()) {
+            return JsonWebKeySet.parse(content);
+        }
+    }
+
+    private boolean verifySignature(PublicKey key, String signedContent, byte[] signature) {
+        try {
+            Signature verifier = Signature.getInstance("SHA256withRSA");
+            verifier.initVerify(key);
+            verifier.update(signedContent.getBytes(StandardCharsets.US_ASCII));
+            return verifier.verify(signature);
+        } catch (SignatureException e) {
+            return false;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not verify " + PROVIDER_NAME + " ID token signature", e);
+        }
+    }
+
+    private boolean isAudience(JsonNode aud, String clientId) {
+        if (clientId == null) {
+            return false;
+        }
+        if (aud.isArray()) {
+            for (JsonNode audience : aud) {
+                if (clientId.equals(audience.asText())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return clientId.equals(aud.asText());
+    }
+}
@@ -18,10 +18,9 @@ package com.amazonaws.sample.entitlement.authorization;
 import com.amazonaws.sample.entitlement.exceptions.AuthorizationException;
 import com.amazonaws.sample.entitlement.exceptions.OAuthBadRequestException;
 import com.amazonaws.sample.entitlement.exceptions.OAuthBadTokenException;
-import com.amazonaws.sample.entitlement.http.AllStatusesContentResponseHandler;
-import com.amazonaws.sample.entitlement.http.ResponseContent;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.amazonaws.sample.entitlement.http.ProviderHttpClient;
+import com.amazonaws.sample.entitlement.http.ProviderResponse;
+import com.amazonaws.sample.entitlement.http.ProviderResponseHandler;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.fluent.Request;
 import org.apache.log4j.Logger;
@@ -32,7 +31,6 @@ import org.springframework.stereotype.Component;
 
 import java.io.IOException;
 import java.net.URLEncoder;
-import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -51,6 +49,10 @@ public class GoogleOAuth2AuthorizationHandler extends AbstractOAuth2Authorizatio
     @Qualifier("configuration")
     private Properties cognitoProperties;
 
+    @Autowired
+    @Qualifier("googleHttpClient")
+    private ProviderHttpClient httpClient;
+
     private Logger log = Logger.getLogger(GoogleOAuth2AuthorizationHandler.class.getName());
 
     //-------------------------------------------------------------
@@ -77,24 +79,21 @@ public class GoogleOAuth2AuthorizationHandler extends AbstractOAuth2Authorizatio
     Identity verifyAccessToken(String accessToken) throws AuthorizationException {
         try {
 
-            ResponseContent r = Request.Get("https://www.googleapis.com/userinfo/v2/me")
-                    .addHeader("Authorization", "Bearer " + URLEncoder.encode(accessToken, "UTF-8"))
-                    .execute()
-                    .handleResponse(new AllStatusesContentResponseHandler());
+            ProviderResponse r = httpClient.execute(Request.Get("https://www.googleapis.com/userinfo/v2/me")
+                    .addHeader("Authorization", "Bearer " + URLEncoder.encode(accessToken, "UTF-8")),
+                    new ProviderResponseHandler());
 
             int statusCode = r.getStatusCode();
             log.info(statusCode);
 
-            Map<String, Object> m = new ObjectMapper().readValue(r.getContent("{}"), new TypeReference<Object>(){});
-
             if (statusCode == HttpStatus.SC_OK) {
-                if (!m.containsKey("email")) {
+                if (r.getEmail() == null) {
                     throw new RuntimeException("Expected response to include email but it does not.");
                 }
-                return new Identity(m.get("id").toString(), m.get("email").toString());
+                return new Identity(r.getId(), r.getEmail());
             }
             if (statusCode == HttpStatus.SC_BAD_REQUEST) {
-                throw new OAuthBadRequestException(buildErrorMessageFromResponse(m, statusCode), AUTHORIZATION_TYPE);
+                throw new OAuthBadRequestException(buildErrorMessageFromResponse(r, statusCode), AUTHORIZATION_TYPE);
             }
             if (statusCode >= 500) {
                 throw new RuntimeException(PROVIDER_NAME + " encountered an error. Status code: " + statusCode);
@@ -119,29 +118,28 @@ public class GoogleOAuth2AuthorizationHandler extends AbstractOAuth2Authorizatio
     // Methods - Private
     //-------------------------------------------------------------
 
-    private String buildErrorMessageFromResponse(Map<String, Object> m, int statusCode) {
+    private String buildErrorMessageFromResponse(ProviderResponse r, int statusCode) {
         StringBuilder message = new StringBuilder();
-        Map errorMap = (Map) m.get("error");
 
-        if (errorMap == null) {
+        if (!r.hasErrorObject()) {
             message.append("Bad ");
             message.append(PROVIDER_NAME);
             message.append(" request.");
         } else {
-            if (errorMap.containsKey("message")) {
-                message.append(errorMap.get("message"));
+            if (r.getMessage() != null) {
+                message.append(r.getMessage());
             }
-            if (errorMap.containsKey("type")) {
+            if (r.getErrorType() != null) {
                 message.append(" Type: ");
-                message.append(errorMap.get("type"));
+                message.append(r.getErrorType());
             }
-            if (errorMap.containsKey("code")) {
+            if (r.getErrorCode() != null) {
                 message.append(" Code: ");
-                message.append(errorMap.get("code"));
+                message.append(r.getErrorCode());
             }
-            if (errorMap.containsKey("error_subcode")) {
+            if (r.getErrorSubcode() != null) {
                 message.append(" Error Subcode: ");
-                message.append(errorMap.get("code"));
+                message.append(r.getErrorSubcode());
             }
         }
 
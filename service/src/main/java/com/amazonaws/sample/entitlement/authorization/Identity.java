@@ -35,6 +35,7 @@ public class Identity {
     private String email;
     private String token;
     private Long expires;
+    private String sessionToken;
 
 
     //-------------------------------------------------------------
@@ -50,6 +51,14 @@ public class Identity {
         this.email = email;
     }
 
+    public Identity(Identity identity) {
+        this.id = identity.id;
+        this.email = identity.email;
+        this.token = identity.token;
+        this.expires = identity.expires;
+        this.sessionToken = identity.sessionToken;
+    }
+
 
     //-------------------------------------------------------------
     // Methods - Getter/Setter
@@ -83,4 +92,8 @@ public class Identity {
 
     public void setExpires(Long expires) { this.expires = expires; }
 
+    public String getSessionToken() { return sessionToken; }
+
+    public void setSessionToken(String sessionToken) { this.sessionToken = sessionToken; }
+
 }
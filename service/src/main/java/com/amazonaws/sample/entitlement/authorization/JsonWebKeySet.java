@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.amazonaws.sample.entitlement.authorization;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable set of RSA public keys read from a JSON Web Key Set document (RFC 7517), indexed by key id.
+ * Keys of other types are ignored.
+ */
+class JsonWebKeySet {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Map<String, PublicKey> keys;
+
+    //-------------------------------------------------------------
+    // Constructors
+    //-------------------------------------------------------------
+
+    private JsonWebKeySet(Map<String, PublicKey> keys) {
+        this.keys = Collections.unmodifiableMap(keys);
+    }
+
+    //-------------------------------------------------------------
+    // Methods - Package Private
+    //-------------------------------------------------------------
+
+    /**
+     * @param content a JSON Web Key Set document
+     * @return the RSA keys of the document
+     * @throws IOException if the document cannot be read or contains no usable key
+     */
+    static JsonWebKeySet parse(InputStream content) throws IOException {
+        JsonNode document = MAPPER.readTree(content);
+        Map<String, PublicKey> keys = new HashMap<>();
+        try {
+            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+            for (JsonNode key : document.path("keys")) {
+                if (!"RSA".equals(key.path("kty").asText()) || !key.hasNonNull("kid")
+                        || !key.hasNonNull("n") || !key.hasNonNull("e")) {
+                    continue;
+                }
+                BigInteger modulus = new BigInteger(1, Base64.getUrlDecoder().decode(key.get("n").asText()));
+                BigInteger exponent = new BigInteger(1, Base64.getUrlDecoder().decode(key.get("e").asText()));
+                keys.put(key.get("kid").asText(), keyFactory.generatePublic(new RSAPublicKeySpec(modulus, exponent)));
+            }
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new IOException("Invalid key in JSON Web Key Set.", e);
+        }
+        if (keys.isEmpty()) {
+            throw new IOException("JSON Web Key Set contains no RSA keys.");
+        }
+        return new JsonWebKeySet(keys);
+    }
+
+    /**
+     * @return the public key with the given key id, or null if the set does not contain it
+     */
+    PublicKey getKey(String kid) {
+        return keys.get(kid);
+    }
+
+    int size() {
+        return keys.size();
+    }
+}
@@ -18,12 +18,11 @@ package com.amazonaws.sample.entitlement.authorization;
 import com.amazonaws.sample.entitlement.exceptions.AuthorizationException;
 import com.amazonaws.sample.entitlement.exceptions.OAuthBadRequestException;
 import com.amazonaws.sample.entitlement.exceptions.OAuthBadTokenException;
-import com.amazonaws.sample.entitlement.http.AllStatusesContentResponseHandler;
-import com.amazonaws.sample.entitlement.http.ResponseContent;
+import com.amazonaws.sample.entitlement.http.ProviderHttpClient;
+import com.amazonaws.sample.entitlement.http.ProviderResponse;
+import com.amazonaws.sample.entitlement.http.ProviderResponseHandler;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.fluent.Request;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
@@ -32,6 +31,7 @@ import org.springframework.stereotype.Component;
 import javax.validation.constraints.NotNull;
 import java.io.IOException;
 import java.net.URLEncoder;
+import java.time.Instant;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
@@ -57,6 +57,10 @@ public class LoginWithAmazonOAuth2AuthorizationHandler extends AbstractOAuth2Aut
     @Qualifier("configuration")
     private Properties cognitoProperties;
 
+    @Autowired
+    @Qualifier("loginWithAmazonHttpClient")
+    private ProviderHttpClient httpClient;
+
     private Map<String, String> lwaErrorMessages;
 
     //-------------------------------------------------------------
@@ -91,23 +95,20 @@ public class LoginWithAmazonOAuth2AuthorizationHandler extends AbstractOAuth2Aut
     Identity getIdentity(String accessToken) throws AuthorizationException {
         try {
             // exchange the access token for user profile
-            ResponseContent r = Request.Get("https://api.amazon.com/user/profile")
-                    .addHeader("Authorization", "bearer " + accessToken)
-                    .execute()
-                    .handleResponse(new AllStatusesContentResponseHandler());
+            ProviderResponse r = httpClient.execute(Request.Get("https://api.amazon.com/user/profile")
+                    .addHeader("Authorization", "bearer " + accessToken),
+                    new ProviderResponseHandler());
 
             int statusCode = r.getStatusCode();
 
-            Map<String, String> m = new ObjectMapper().readValue(r.getContent("{}"), new TypeReference<Object>(){});
-
             if (statusCode == HttpStatus.SC_OK) {
-                if (!m.containsKey("email")) {
+                if (r.getEmail() == null) {
                     throw new RuntimeException("Expected response to include email but it does not.");
                 }
-                return new Identity(m.get("user_id"), m.get("email"));
+                return new Identity(r.getUserId(), r.getEmail());
             }
             if (statusCode == HttpStatus.SC_BAD_REQUEST || statusCode == HttpStatus.SC_UNAUTHORIZED) {
-                throw new OAuthBadRequestException(buildErrorMessageFromResponse(m, statusCode), AUTHORIZATION_TYPE);
+                throw new OAuthBadRequestException(buildErrorMessageFromResponse(r, statusCode), AUTHORIZATION_TYPE);
             }
             if (statusCode >= 500) {
                 throw new RuntimeException(PROVIDER_NAME + " encountered an error. Status code: " + statusCode);
@@ -127,25 +128,28 @@ public class LoginWithAmazonOAuth2AuthorizationHandler extends AbstractOAuth2Aut
     @Override
     Identity verifyAccessToken(String accessToken) throws AuthorizationException {
         try {
-            ResponseContent r = Request.Get("https://api.amazon.com/auth/o2/tokeninfo?access_token="
-                    + URLEncoder.encode(accessToken, "UTF-8"))
-                    .execute()
-                    .handleResponse(new AllStatusesContentResponseHandler());
+            ProviderResponse r = httpClient.execute(Request.Get("https://api.amazon.com/auth/o2/tokeninfo?access_token="
+                    + URLEncoder.encode(accessToken, "UTF-8")),
+                    new ProviderResponseHandler());
 
             int statusCode = r.getStatusCode();
 
-            Map<String, String> m = new ObjectMapper().readValue(r.getContent("{}"), new TypeReference<Object>(){});
-
             if (statusCode == HttpStatus.SC_OK) {
-                if (!this.getOauthClientId().equals(m.get("aud"))) {
+                if (!this.getOauthClientId().equals(r.getAud())) {
                     // the access token is valid but it does not belong to us
                     throw new OAuthBadTokenException("access token is invalid", AUTHORIZATION_TYPE);
                 }
-                // The response does not contain enough information to create an Identity object so null is returned.
-                return null;
+                // The response does not contain enough information to create a complete Identity object, so only
+                // the expiry is returned. "exp" is the number of seconds until the access token expires.
+                if (r.getExp() == null) {
+                    return null;
+                }
+                Identity identity = new Identity((String) null);
+                identity.setExpires(Instant.now().plusSeconds(r.getExp()).toEpochMilli());
+                return identity;
             }
             if (statusCode == HttpStatus.SC_BAD_REQUEST) {
-                throw new OAuthBadRequestException(buildErrorMessageFromResponse(m, statusCode), AUTHORIZATION_TYPE);
+                throw new OAuthBadRequestException(buildErrorMessageFromResponse(r, statusCode), AUTHORIZATION_TYPE);
             }
             if (statusCode >= 500) {
                 throw new RuntimeException(PROVIDER_NAME + " encountered an error. Status code: " + statusCode);
@@ -162,6 +166,11 @@ public class LoginWithAmazonOAuth2AuthorizationHandler extends AbstractOAuth2Aut
         return AUTHORIZATION_TYPE;
     }
 
+    @Override
+    boolean fetchesProfileSeparately() {
+        return true;
+    }
+
     String getOauthClientId() {
         return this.cognitoProperties.getProperty("loginWithAmazonOAuthClientId");
     }
@@ -170,17 +179,17 @@ public class LoginWithAmazonOAuth2AuthorizationHandler extends AbstractOAuth2Aut
     // Methods - Private
     //-------------------------------------------------------------
 
-    private String buildErrorMessageFromResponse(Map<String, String> m, int statusCode) {
+    private String buildErrorMessageFromResponse(ProviderResponse r, int statusCode) {
         String message;
-        String errorCode = m.get("message");
+        String errorCode = r.getMessage();
 
         if (errorCode == null) {
             message = "Bad " + PROVIDER_NAME + " request. Status code: " + statusCode;
         } else {
             message = lwaErrorMessages.get(errorCode);
             if (message == null) {
-                if (m.containsKey("error_description")) {
-                    message = m.get("error_description");
+                if (r.getErrorDescription() != null) {
+                    message = r.getErrorDescription();
                 } else {
                     message = PROVIDER_NAME + " error code: " + errorCode + ". Status code: " + statusCode;
                 }
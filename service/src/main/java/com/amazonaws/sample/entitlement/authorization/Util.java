@@ -17,6 +17,11 @@ package com.amazonaws.sample.entitlement.authorization;
 import com.amazonaws.sample.entitlement.exceptions.AuthorizationException;
 import com.amazonaws.sample.entitlement.exceptions.UserNotFoundException;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
 public final class Util {
 
     //-------------------------------------------------------------
@@ -47,4 +52,20 @@ public final class Util {
 
         return token;
     }
+
+    /**
+     * Hash an authorization string so that it can be used as a cache key without keeping the access token itself
+     * in memory.
+     * @param authorization an authorization string
+     * @return the URL-safe Base64 encoded SHA-256 digest of the trimmed authorization string
+     */
+    public static String hashAuthorization(String authorization) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(authorization.trim().getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
 }
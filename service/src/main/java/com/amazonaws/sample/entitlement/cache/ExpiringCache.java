@@ -0,0 +1,158 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.amazonaws.sample.entitlement.cache;
+
+import org.springframework.boot.actuate.metrics.CounterService;
+
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A bounded, thread-safe cache whose entries expire after a per-entry time to live.
+ *
+ * Reads are lock-free. When the cache is full, expired entries are purged first and then an arbitrary tenth of the
+ * remaining entries are evicted. Hits, misses and evictions are published through the actuator
+ * {@link CounterService} as <code>cache.&lt;name&gt;.hit</code>, <code>cache.&lt;name&gt;.miss</code> and
+ * <code>cache.&lt;name&gt;.eviction</code>.
+ */
+public class ExpiringCache<K, V> {
+
+    //-------------------------------------------------------------
+    // Variables - Private
+    //-------------------------------------------------------------
+
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+
+    private final int maxSize;
+    private final long defaultTtlMilli;
+    private final CounterService counterService;
+
+    private final String hitMetric;
+    private final String missMetric;
+    private final String evictionMetric;
+
+    //-------------------------------------------------------------
+    // Constructors
+    //-------------------------------------------------------------
+
+    public ExpiringCache(String name, int maxSize, long defaultTtlMilli, CounterService counterService) {
+        this.maxSize = maxSize;
+        this.defaultTtlMilli = defaultTtlMilli;
+        this.counterService = counterService;
+        this.hitMetric = "cache." + name + ".hit";
+        this.missMetric = "cache." + name + ".miss";
+        this.evictionMetric = "cache." + name + ".eviction";
+    }
+
+    //-------------------------------------------------------------
+    // Methods - Public
+    //-------------------------------------------------------------
+
+    /**
+     * @param key cache key
+     * @return the cached value, or null if there is no entry or the entry has expired
+     */
+    public V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && entry.isExpired(Instant.now().toEpochMilli())) {
+            if (entries.remove(key, entry)) {
+                counterService.increment(evictionMetric);
+            }
+            entry = null;
+        }
+        if (entry == null) {
+            counterService.increment(missMetric);
+            return null;
+        }
+        counterService.increment(hitMetric);
+        return entry.value;
+    }
+
+    /**
+     * Cache a value for the default time to live.
+     */
+    public void put(K key, V value) {
+        put(key, value, defaultTtlMilli);
+    }
+
+    /**
+     * Cache a value for the given time to live. Values with a time to live of zero or less are not cached.
+     */
+    public void put(K key, V value, long ttlMilli) {
+        if (ttlMilli <= 0) {
+            return;
+        }
+        if (entries.size() >= maxSize && !entries.containsKey(key)) {
+            makeRoom();
+        }
+        entries.put(key, new Entry<>(value, Instant.now().toEpochMilli() + ttlMilli));
+    }
+
+    public void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getDefaultTtlMilli() {
+        return defaultTtlMilli;
+    }
+
+    //-------------------------------------------------------------
+    // Methods - Private
+    //-------------------------------------------------------------
+
+    private void makeRoom() {
+        long now = Instant.now().toEpochMilli();
+        int evicted = 0;
+        for (Iterator<Map.Entry<K, Entry<V>>> i = entries.entrySet().iterator(); i.hasNext(); ) {
+            if (i.next().getValue().isExpired(now)) {
+                i.remove();
+                evicted++;
+            }
+        }
+        int target = maxSize - Math.max(1, maxSize / 10);
+        for (Iterator<K> i = entries.keySet().iterator(); i.hasNext() && entries.size() > target; ) {
+            i.next();
+            i.remove();
+            evicted++;
+        }
+        for (int n = 0; n < evicted; n++) {
+            counterService.increment(evictionMetric);
+        }
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long expiresAtMilli;
+
+        private Entry(V value, long expiresAtMilli) {
+            this.value = value;
+            this.expiresAtMilli = expiresAtMilli;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expiresAtMilli;
+        }
+    }
+}
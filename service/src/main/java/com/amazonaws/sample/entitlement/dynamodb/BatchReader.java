@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.amazonaws.sample.entitlement.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.BatchGetItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.TableKeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads items by key with BatchGetItem, at most {@link #MAX_BATCH_SIZE} keys per call. Keys that DynamoDB leaves
+ * unprocessed, usually because the table is throttled, are requested again after a {@link RetryBackoff}.
+ */
+@Component
+public class BatchReader {
+
+    //-------------------------------------------------------------
+    // Constants
+    //-------------------------------------------------------------
+
+    /**
+     * Maximum number of keys of a BatchGetItem request.
+     */
+    public static final int MAX_BATCH_SIZE = 100;
+
+    //-------------------------------------------------------------
+    // Variables - Private
+    //-------------------------------------------------------------
+
+    @Autowired
+    private DynamoDB dynamoDBDocument;
+
+    @Autowired
+    private RetryBackoff retryBackoff;
+
+    //-------------------------------------------------------------
+    // Methods - Public
+    //-------------------------------------------------------------
+
+    /**
+     * Read the items with the given keys from a table.
+     * @param table the table to read from
+     * @param keys primary keys of the items, without duplicates
+     * @return the items that exist, in no particular order
+     * @throws ProvisionedThroughputExceededException if keys are still unprocessed after dynamoDBMaxRetries retries
+     */
+    public List<Item> getItems(Table table, List<PrimaryKey> keys) {
+        List<Item> items = new ArrayList<>(keys.size());
+        for (int from = 0; from < keys.size(); from += MAX_BATCH_SIZE) {
+            List<PrimaryKey> batch = keys.subList(from, Math.min(keys.size(), from + MAX_BATCH_SIZE));
+            BatchGetItemOutcome outcome = dynamoDBDocument.batchGetItem(new TableKeysAndAttributes(table.getTableName())
+                    .withPrimaryKeys(batch.toArray(new PrimaryKey[batch.size()])));
+            items.addAll(outcome.getTableItems().getOrDefault(table.getTableName(), Collections.emptyList()));
+            Map<String, KeysAndAttributes> unprocessed = outcome.getUnprocessedKeys();
+            int retries = 0;
+            while (unprocessed != null && !unprocessed.isEmpty()) {
+                if (++retries > retryBackoff.getMaxRetries()) {
+                    throw new ProvisionedThroughputExceededException("Keys of " + table.getTableName()
+                            + " still unprocessed after " + retryBackoff.getMaxRetries() + " retries");
+                }
+                try {
+                    retryBackoff.backoff(retries, "Batch read of " + table.getTableName() + " left keys unprocessed");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while retrying a batch read", e);
+                }
+                outcome = dynamoDBDocument.batchGetItemUnprocessed(unprocessed);
+                items.addAll(outcome.getTableItems().getOrDefault(table.getTableName(), Collections.emptyList()));
+                unprocessed = outcome.getUnprocessedKeys();
+            }
+        }
+        return items;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.amazonaws.sample.entitlement.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Puts and deletes items with BatchWriteItem, at most {@link #MAX_BATCH_SIZE} items per call. Items that DynamoDB
+ * leaves unprocessed are written again after a {@link RetryBackoff}, like {@link BatchReader}.
+ */
+@Component
+public class BatchWriter {
+
+    //-------------------------------------------------------------
+    // Constants
+    //-------------------------------------------------------------
+
+    /**
+     * Maximum number of items of a BatchWriteItem request.
+     */
+    public static final int MAX_BATCH_SIZE = 25;
+
+    //-------------------------------------------------------------
+    // Variables - Private
+    //-------------------------------------------------------------
+
+    @Autowired
+    private DynamoDB dynamoDBDocument;
+
+    @Autowired
+    private RetryBackoff retryBackoff;
+
+    //-------------------------------------------------------------
+    // Methods - Public
+    //-------------------------------------------------------------
+
+    /**
+     * Put items into a table, replacing items with the same keys.
+     * @throws ProvisionedThroughputExceededException if items are still unprocessed after dynamoDBMaxRetries retries
+     */
+    public void putItems(Table table, List<Item> items) {
+        for (int from = 0; from < items.size(); from += MAX_BATCH_SIZE) {
+            List<Item> batch = items.subList(from, Math.min(items.size(), from + MAX_BATCH_SIZE));
+            write(table, new TableWriteItems(table.getTableName())
+                    .withItemsToPut(batch.toArray(new Item[batch.size()])));
+        }
+    }
+
+    /**
+     * Delete the items with the given keys from a table.
+     * @throws ProvisionedThroughputExceededException if keys are still unprocessed after dynamoDBMaxRetries retries
+     */
+    public void deleteItems(Table table, List<PrimaryKey> keys) {
+        for (int from = 0; from < keys.size(); from += MAX_BATCH_SIZE) {
+            List<PrimaryKey> batch = keys.subList(from, Math.min(keys.size(), from + MAX_BATCH_SIZE));
+            write(table, new TableWriteItems(table.getTableName())
+                    .withPrimaryKeysToDelete(batch.toArray(new PrimaryKey[batch.size()])));
+        }
+    }
+
+    //-------------------------------------------------------------
+    // Methods - Private
+    //-------------------------------------------------------------
+
+    private void write(Table table, TableWriteItems writeItems) {
+        BatchWriteItemOutcome outcome = dynamoDBDocument.batchWriteItem(writeItems);
+        Map<String, List<WriteRequest>> unprocessed = outcome.getUnprocessedItems();
+        int retries = 0;
+        while (unprocessed != null && !unprocessed.isEmpty()) {
+            if (++retries > retryBackoff.getMaxRetries()) {
+                throw new ProvisionedThroughputExceededException("Items of " + table.getTableName()
+                        + " still unprocessed after " + retryBackoff.getMaxRetries() + " retries");
+            }
+            try {
+                retryBackoff.backoff(retries, "Batch write of " + table.getTableName() + " left items unprocessed");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while retrying a batch write", e);
+            }
+            outcome = dynamoDBDocument.batchWriteItemUnprocessed(unprocessed);
+            unprocessed = outcome.getUnprocessedItems();
+        }
+    }
+}
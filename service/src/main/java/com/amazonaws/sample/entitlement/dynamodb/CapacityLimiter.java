@@ -0,0 +1,477 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.amazonaws.sample.entitlement.dynamodb;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.*;
+import org.apache.log4j.Logger;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces the requests of a DynamoDB client to the capacity of each table, so that the service queues requests instead
+ * of having them throttled with ProvisionedThroughputExceededException.
+ *
+ * Each table and each global secondary index has a token bucket for reads and one for writes, refilled at its
+ * provisioned capacity, which is read with DescribeTable and refreshed every capacityRefreshMilli. A request takes an
+ * estimate of its capacity units before it is sent and waits while the bucket is empty; once DynamoDB returns the
+ * consumed capacity, the bucket is corrected by the difference. Queries and scans are estimated from their Limit,
+ * assuming items of up to 4 KB. A bucket may hold up to burstSeconds of capacity. A request that was throttled anyway
+ * drains the bucket for a second, so that the following requests back off.
+ *
+ * Requests run in the {@link Lane#INTERACTIVE} lane unless the calling thread runs them through
+ * {@link #runInBackground(Runnable)}. Background requests wait while interactive requests wait for the same bucket and
+ * leave a reserve of backgroundReserve of the bucket to interactive requests. What a background request consumes
+ * beyond the tokens above the reserve is booked as debt of the background lane, which later background requests wait
+ * to repay, so a large scan page never delays interactive requests. Interactive requests wait at most maxWaitMilli and
+ * are then sent regardless, leaving it to the client's retries.
+ *
+ * Waits are published through the actuator as <code>dynamodb.&lt;table&gt;.read|write.*</code>.
+ */
+public class CapacityLimiter extends RequestHandler2 {
+
+    /**
+     * Priority of the requests of a thread.
+     */
+    public enum Lane { INTERACTIVE, BACKGROUND }
+
+    //-------------------------------------------------------------
+    // Variables - Private
+    //-------------------------------------------------------------
+
+    // separates a table name from an index name in bucket names; table names cannot contain '/'
+    private static final String INDEX_SEPARATOR = "/index/";
+
+    private static final ThreadLocal<Lane> LANE = ThreadLocal.withInitial(() -> Lane.INTERACTIVE);
+
+    private final AmazonDynamoDB dynamoDBClient;
+    private final CounterService counterService;
+    private final GaugeService gaugeService;
+    private final double burstSeconds;
+    private final double backgroundReserve;
+    private final long maxWaitMilli;
+    private final long capacityRefreshMilli;
+
+    private final Map<String, TableBuckets> tables = new ConcurrentHashMap<>();
+
+    private Logger log = Logger.getLogger(CapacityLimiter.class.getName());
+
+    //-------------------------------------------------------------
+    // Constructors
+    //-------------------------------------------------------------
+
+    /**
+     * @param dynamoDBClient client used to look up the provisioned capacity of tables
+     */
+    public CapacityLimiter(AmazonDynamoDB dynamoDBClient, CounterService counterService, GaugeService gaugeService,
+                           double burstSeconds, double backgroundReserve, long maxWaitMilli, long capacityRefreshMilli) {
+        this.dynamoDBClient = dynamoDBClient;
+        this.counterService = counterService;
+        this.gaugeService = gaugeService;
+        this.burstSeconds = burstSeconds;
+        this.backgroundReserve = backgroundReserve;
+        this.maxWaitMilli = maxWaitMilli;
+        this.capacityRefreshMilli = capacityRefreshMilli;
+    }
+
+    //-------------------------------------------------------------
+    // Methods - Public
+    //-------------------------------------------------------------
+
+    /**
+     * Run a task with its DynamoDB requests in the background lane.
+     */
+    public static void runInBackground(Runnable task) {
+        Lane previous = LANE.get();
+        LANE.set(Lane.BACKGROUND);
+        try {
+            task.run();
+        } finally {
+            LANE.set(previous);
+        }
+    }
+
+    @Override
+    public AmazonWebServiceRequest beforeMarshalling(AmazonWebServiceRequest request) {
+        // the consumed capacity corrects the estimates
+        if (request instanceof GetItemRequest) {
+            ((GetItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        } else if (request instanceof QueryRequest) {
+            // a query of an index only consumes the capacity of the index
+            ((QueryRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        } else if (request instanceof ScanRequest) {
+            ((ScanRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        } else if (request instanceof BatchGetItemRequest) {
+            ((BatchGetItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        } else if (request instanceof PutItemRequest) {
+            ((PutItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        } else if (request instanceof UpdateItemRequest) {
+            ((UpdateItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        } else if (request instanceof DeleteItemRequest) {
+            ((DeleteItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        } else if (request instanceof BatchWriteItemRequest) {
+            ((BatchWriteItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        }
+        return request;
+    }
+
+    @Override
+    public void beforeRequest(Request<?> request) {
+        AmazonWebServiceRequest original = request.getOriginalRequest();
+        boolean write = isWrite(original);
+        for (Map.Entry<String, Double> estimate : estimate(original).entrySet()) {
+            TokenBucket bucket = getBucket(estimate.getKey(), write);
+            try {
+                long waitedMilli = bucket.acquire(estimate.getValue(), LANE.get());
+                if (waitedMilli > 0) {
+                    counterService.increment(bucket.metric + ".queued");
+                    gaugeService.submit(bucket.metric + ".waitMilli", waitedMilli);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AmazonClientException("Interrupted while waiting for capacity of " + estimate.getKey(), e);
+            }
+        }
+    }
+
+    @Override
+    public void afterResponse(Request<?> request, Response<?> response) {
+        AmazonWebServiceRequest original = request.getOriginalRequest();
+        boolean write = isWrite(original);
+        Map<String, Double> estimates = estimate(original);
+        String index = indexName(original);
+        for (ConsumedCapacity consumed : consumed(response.getAwsResponse())) {
+            if (consumed != null && consumed.getCapacityUnits() != null) {
+                String bucketName = bucketName(consumed.getTableName(), index);
+                getBucket(bucketName, write)
+                        .take(consumed.getCapacityUnits() - estimates.getOrDefault(bucketName, 0.0), LANE.get());
+            }
+        }
+    }
+
+    @Override
+    public void afterError(Request<?> request, Response<?> response, Exception e) {
+        if (e instanceof ProvisionedThroughputExceededException) {
+            AmazonWebServiceRequest original = request.getOriginalRequest();
+            for (String tableName : estimate(original).keySet()) {
+                TokenBucket bucket = getBucket(tableName, isWrite(original));
+                bucket.throttled();
+                counterService.increment(bucket.metric + ".throttled");
+            }
+        }
+    }
+
+    //-------------------------------------------------------------
+    // Methods - Private
+    //-------------------------------------------------------------
+
+    /**
+     * @param bucketName a table name, or an index as returned by {@link #bucketName(String, String)}
+     */
+    private TokenBucket getBucket(String bucketName, boolean write) {
+        TableBuckets buckets = tables.computeIfAbsent(bucketName, TableBuckets::new);
+        buckets.refreshCapacity();
+        return write ? buckets.write : buckets.read;
+    }
+
+    /**
+     * @return the name of the buckets of a table, or of one of its indexes if indexName is not null
+     */
+    private static String bucketName(String tableName, String indexName) {
+        return indexName == null ? tableName : tableName + INDEX_SEPARATOR + indexName;
+    }
+
+    /**
+     * @return the index a query or scan reads, or null if it reads the table
+     */
+    private static String indexName(AmazonWebServiceRequest request) {
+        if (request instanceof QueryRequest) {
+            return ((QueryRequest) request).getIndexName();
+        } else if (request instanceof ScanRequest) {
+            return ((ScanRequest) request).getIndexName();
+        }
+        return null;
+    }
+
+    /**
+     * @param limit the Limit of a query or scan, or null
+     * @return estimated read capacity units of a page
+     */
+    private static double estimatePage(Integer limit, Boolean consistentRead) {
+        if (limit == null) {
+            return 1.0;
+        }
+        // an eventually consistent read of a 4 KB item takes half a unit
+        return Math.max(1.0, Boolean.TRUE.equals(consistentRead) ? limit : Math.ceil(limit / 2.0));
+    }
+
+    private static boolean isWrite(AmazonWebServiceRequest request) {
+        return request instanceof PutItemRequest || request instanceof UpdateItemRequest
+                || request instanceof DeleteItemRequest || request instanceof BatchWriteItemRequest;
+    }
+
+    /**
+     * @return estimated capacity units of a request by table name; empty for requests that are not paced
+     */
+    private static Map<String, Double> estimate(AmazonWebServiceRequest request) {
+        if (request instanceof GetItemRequest) {
+            return Collections.singletonMap(((GetItemRequest) request).getTableName(), 1.0);
+        } else if (request instanceof QueryRequest) {
+            QueryRequest query = (QueryRequest) request;
+            return Collections.singletonMap(bucketName(query.getTableName(), query.getIndexName()),
+                    estimatePage(query.getLimit(), query.getConsistentRead()));
+        } else if (request instanceof ScanRequest) {
+            ScanRequest scan = (ScanRequest) request;
+            return Collections.singletonMap(bucketName(scan.getTableName(), scan.getIndexName()),
+                    // scans of the pinned SDK cannot request consistent reads
+                    estimatePage(scan.getLimit(), false));
+        } else if (request instanceof PutItemRequest) {
+            return Collections.singletonMap(((PutItemRequest) request).getTableName(), 1.0);
+        } else if (request instanceof UpdateItemRequest) {
+            return Collections.singletonMap(((UpdateItemRequest) request).getTableName(), 1.0);
+        } else if (request instanceof DeleteItemRequest) {
+            return Collections.singletonMap(((DeleteItemRequest) request).getTableName(), 1.0);
+        } else if (request instanceof BatchGetItemRequest) {
+            Map<String, Double> estimates = new HashMap<>();
+            ((BatchGetItemRequest) request).getRequestItems().forEach((tableName, keys) ->
+                    estimates.put(tableName, (double) keys.getKeys().size()));
+            return estimates;
+        } else if (request instanceof BatchWriteItemRequest) {
+            Map<String, Double> estimates = new HashMap<>();
+            ((BatchWriteItemRequest) request).getRequestItems().forEach((tableName, writes) ->
+                    estimates.put(tableName, (double) writes.size()));
+            return estimates;
+        }
+        return Collections.emptyMap();
+    }
+
+    private static List<ConsumedCapacity> consumed(Object result) {
+        if (result instanceof GetItemResult) {
+            return Collections.singletonList(((GetItemResult) result).getConsumedCapacity());
+        } else if (result instanceof QueryResult) {
+            return Collections.singletonList(((QueryResult) result).getConsumedCapacity());
+        } else if (result instanceof ScanResult) {
+            return Collections.singletonList(((ScanResult) result).getConsumedCapacity());
+        } else if (result instanceof PutItemResult) {
+            return Collections.singletonList(((PutItemResult) result).getConsumedCapacity());
+        } else if (result instanceof UpdateItemResult) {
+            return Collections.singletonList(((UpdateItemResult) result).getConsumedCapacity());
+        } else if (result instanceof DeleteItemResult) {
+            return Collections.singletonList(((DeleteItemResult) result).getConsumedCapacity());
+        } else if (result instanceof BatchGetItemResult && ((BatchGetItemResult) result).getConsumedCapacity() != null) {
+            return ((BatchGetItemResult) result).getConsumedCapacity();
+        } else if (result instanceof BatchWriteItemResult && ((BatchWriteItemResult) result).getConsumedCapacity() != null) {
+            return ((BatchWriteItemResult) result).getConsumedCapacity();
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * The read and write buckets of a table or global secondary index and its provisioned capacity.
+     */
+    private final class TableBuckets {
+
+        private final String tableName;
+        private final String indexName;
+        private final TokenBucket read;
+        private final TokenBucket write;
+        private volatile long capacityCheckedMilli;
+
+        private TableBuckets(String bucketName) {
+            int separator = bucketName.indexOf(INDEX_SEPARATOR);
+            this.tableName = separator < 0 ? bucketName : bucketName.substring(0, separator);
+            this.indexName = separator < 0 ? null : bucketName.substring(separator + INDEX_SEPARATOR.length());
+            String metric = "dynamodb." + tableName + (indexName == null ? "" : "." + indexName);
+            this.read = new TokenBucket(metric + ".read", burstSeconds, backgroundReserve, maxWaitMilli, gaugeService);
+            this.write = new TokenBucket(metric + ".write", burstSeconds, backgroundReserve, maxWaitMilli, gaugeService);
+        }
+
+        private void refreshCapacity() {
+            long now = System.currentTimeMillis();
+            if (now - capacityCheckedMilli < capacityRefreshMilli) {
+                return;
+            }
+            capacityCheckedMilli = now;
+            try {
+                TableDescription table = dynamoDBClient.describeTable(tableName).getTable();
+                ProvisionedThroughputDescription throughput = table.getProvisionedThroughput();
+                if (indexName != null) {
+                    throughput = null;
+                    if (table.getGlobalSecondaryIndexes() != null) {
+                        for (GlobalSecondaryIndexDescription index : table.getGlobalSecondaryIndexes()) {
+                            if (index.getIndexName().equals(indexName)) {
+                                throughput = index.getProvisionedThroughput();
+                            }
+                        }
+                    }
+                    if (throughput == null) {
+                        // a local secondary index shares the capacity of its table; keep the default rate
+                        return;
+                    }
+                }
+                read.setRate(throughput.getReadCapacityUnits());
+                write.setRate(throughput.getWriteCapacityUnits());
+            } catch (AmazonClientException e) {
+                log.warn("Could not read the provisioned capacity of " + tableName + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A token bucket of capacity units. Tokens may go negative when an interactive request consumed more than
+     * estimated; later requests then wait until the debt is refilled. Background requests only take tokens above the
+     * interactive reserve and book the rest as background debt, which is repaid from refilled tokens above the reserve
+     * before the next background request is admitted.
+     */
+    static final class TokenBucket {
+
+        private final String metric;
+        private final double burstSeconds;
+        private final double backgroundReserve;
+        private final long maxWaitMilli;
+        private final GaugeService gaugeService;
+        private double ratePerSecond = 1;
+        private double tokens = 1;
+        private double backgroundDebt;
+        private long refilledNanos = System.nanoTime();
+        private int interactiveWaiting;
+
+        TokenBucket(String metric, double burstSeconds, double backgroundReserve, long maxWaitMilli,
+                    GaugeService gaugeService) {
+            this.metric = metric;
+            this.burstSeconds = burstSeconds;
+            this.backgroundReserve = backgroundReserve;
+            this.maxWaitMilli = maxWaitMilli;
+            this.gaugeService = gaugeService;
+        }
+
+        /**
+         * Take units from the bucket, waiting until the bucket has tokens for the lane.
+         * @return milliseconds waited
+         */
+        synchronized long acquire(double units, Lane lane) throws InterruptedException {
+            long start = System.nanoTime();
+            boolean interactive = lane == Lane.INTERACTIVE;
+            if (interactive) {
+                interactiveWaiting++;
+            }
+            try {
+                while (true) {
+                    refill();
+                    double required = interactive ? 0 : getReserve() + backgroundDebt;
+                    long waitedMilli = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    if ((tokens > required && (interactive || interactiveWaiting == 0))
+                            || (interactive && waitedMilli >= maxWaitMilli)) {
+                        charge(units, lane);
+                        return waitedMilli;
+                    }
+                    gaugeService.submit(metric + ".interactiveWaiting", interactiveWaiting);
+                    long refillMilli = (long) Math.ceil((required - tokens + 0.001) / ratePerSecond * 1000);
+                    long waitMilli;
+                    if (interactive) {
+                        waitMilli = Math.min(refillMilli, maxWaitMilli - waitedMilli);
+                    } else if (interactiveWaiting > 0) {
+                        // woken up when an interactive request leaves
+                        waitMilli = maxWaitMilli;
+                    } else {
+                        waitMilli = refillMilli;
+                    }
+                    wait(Math.max(1, waitMilli));
+                }
+            } finally {
+                if (interactive) {
+                    interactiveWaiting--;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Take or, if units is negative, return units of a lane without waiting.
+         */
+        synchronized void take(double units, Lane lane) {
+            refill();
+            charge(units, lane);
+            notifyAll();
+        }
+
+        synchronized void throttled() {
+            refill();
+            tokens = Math.min(tokens, 0) - ratePerSecond;
+        }
+
+        synchronized void setRate(Long capacityUnits) {
+            if (capacityUnits != null && capacityUnits > 0) {
+                refill();
+                ratePerSecond = capacityUnits;
+            }
+        }
+
+        synchronized double getTokens() {
+            refill();
+            return tokens;
+        }
+
+        synchronized double getBackgroundDebt() {
+            refill();
+            return backgroundDebt;
+        }
+
+        private void charge(double units, Lane lane) {
+            if (lane == Lane.INTERACTIVE) {
+                tokens = Math.min(getMaxTokens(), tokens - units);
+            } else if (units < 0) {
+                // a refund first repays the debt of the lane
+                double repaid = Math.min(backgroundDebt, -units);
+                backgroundDebt -= repaid;
+                tokens = Math.min(getMaxTokens(), tokens - units - repaid);
+            } else {
+                double taken = Math.min(units, Math.max(0, tokens - getReserve()));
+                tokens -= taken;
+                backgroundDebt += units - taken;
+            }
+        }
+
+        private double getMaxTokens() {
+            return Math.max(1, ratePerSecond * burstSeconds);
+        }
+
+        private double getReserve() {
+            return backgroundReserve * getMaxTokens();
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(getMaxTokens(), tokens + ratePerSecond * (now - refilledNanos) / 1e9);
+            refilledNanos = now;
+            // background debt is repaid from tokens above the interactive reserve
+            double repaid = Math.min(backgroundDebt, Math.max(0, tokens - getReserve()));
+            backgroundDebt -= repaid;
+            tokens -= repaid;
+        }
+    }
+}
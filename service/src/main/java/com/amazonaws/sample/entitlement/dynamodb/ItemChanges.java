@@ -0,0 +1,146 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.amazonaws.sample.entitlement.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.NameMap;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Tracks the attributes of an item that change after it was read, so that only those are written with UpdateItem
+ * instead of replacing the whole item with PutItem.
+ */
+public class ItemChanges {
+
+    //-------------------------------------------------------------
+    // Variables - Private
+    //-------------------------------------------------------------
+
+    private final Item item;
+    private final Map<String, Object> snapshot;
+    private final Set<String> keyAttributes;
+
+    //-------------------------------------------------------------
+    // Constructors
+    //-------------------------------------------------------------
+
+    /**
+     * Start tracking an item in its current state.
+     * @param item the item, as read from its table
+     * @param keyAttributes names of the key attributes of the table, which are never written
+     */
+    public ItemChanges(Item item, String... keyAttributes) {
+        this.item = item;
+        this.snapshot = new HashMap<>(item.asMap());
+        this.keyAttributes = new HashSet<>(Arrays.asList(keyAttributes));
+    }
+
+    //-------------------------------------------------------------
+    // Methods - Public
+    //-------------------------------------------------------------
+
+    /**
+     * @return true if an attribute was added, changed or removed
+     */
+    public boolean isDirty() {
+        return !getChanged().isEmpty() || !getRemoved().isEmpty();
+    }
+
+    /**
+     * @return true if the attribute was added or changed
+     */
+    public boolean isChanged(String attribute) {
+        return item.isPresent(attribute) && !same(snapshot.get(attribute), item.get(attribute));
+    }
+
+    /**
+     * @return an update that sets the added and changed attributes and removes the removed ones, or null if the item
+     * is not dirty
+     */
+    public UpdateItemSpec toUpdateItemSpec() {
+        List<String> changed = getChanged();
+        List<String> removed = getRemoved();
+        if (changed.isEmpty() && removed.isEmpty()) {
+            return null;
+        }
+        NameMap names = new NameMap();
+        ValueMap values = new ValueMap();
+        StringBuilder expression = new StringBuilder();
+        int i = 0;
+        for (String attribute : changed) {
+            expression.append(expression.length() == 0 ? "SET " : ", ").append("#a").append(i).append(" = :v").append(i);
+            names.with("#a" + i, attribute);
+            values.with(":v" + i, item.get(attribute));
+            i++;
+        }
+        for (int r = 0; r < removed.size(); r++, i++) {
+            expression.append(r == 0 ? (changed.isEmpty() ? "REMOVE " : " REMOVE ") : ", ").append("#a").append(i);
+            names.with("#a" + i, removed.get(r));
+        }
+        PrimaryKey key = new PrimaryKey();
+        for (String attribute : keyAttributes) {
+            key.addComponent(attribute, item.get(attribute));
+        }
+        UpdateItemSpec spec = new UpdateItemSpec()
+                .withPrimaryKey(key)
+                .withUpdateExpression(expression.toString())
+                .withNameMap(names);
+        return values.isEmpty() ? spec : spec.withValueMap(values);
+    }
+
+    //-------------------------------------------------------------
+    // Methods - Private
+    //-------------------------------------------------------------
+
+    private List<String> getChanged() {
+        List<String> changed = new ArrayList<>();
+        for (String attribute : item.asMap().keySet()) {
+            if (!keyAttributes.contains(attribute) && isChanged(attribute)) {
+                changed.add(attribute);
+            }
+        }
+        return changed;
+    }
+
+    private List<String> getRemoved() {
+        List<String> removed = new ArrayList<>();
+        for (String attribute : snapshot.keySet()) {
+            if (!item.isPresent(attribute)) {
+                removed.add(attribute);
+            }
+        }
+        return removed;
+    }
+
+    // numbers may be held as Long or BigDecimal with different scales
+    private static boolean same(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            return new BigDecimal(a.toString()).compareTo(new BigDecimal(b.toString())) == 0;
+        }
+        return Objects.equals(a, b);
+    }
+}
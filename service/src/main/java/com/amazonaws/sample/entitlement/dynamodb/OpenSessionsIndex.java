@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.amazonaws.sample.entitlement.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemCollection;
+import com.amazonaws.services.dynamodbv2.document.QueryOutcome;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+
+/**
+ * The sparse OpenSessions global secondary index of the EntitlementServiceUserSession table.
+ *
+ * Only sessions with an OpenSessionShard attribute are in the index. The attribute is set when a session is started
+ * and removed once the session has ended or its entitlement has expired, so reading the index costs in proportion to
+ * the open sessions instead of all sessions ever started. Open sessions are spread over openSessionShards hash keys
+ * by user id, so that no single index partition takes all writes; readers query every shard. The number of shards
+ * must not be lowered while sessions are open.
+ */
+@Component
+public class OpenSessionsIndex {
+
+    //-------------------------------------------------------------
+    // Constants
+    //-------------------------------------------------------------
+
+    public static final String INDEX_NAME = "OpenSessions";
+    public static final String SHARD_ATTRIBUTE = "OpenSessionShard";
+
+    //-------------------------------------------------------------
+    // Variables - Private
+    //-------------------------------------------------------------
+
+    @Value("${openSessionShards:4}") private int shards;
+
+    //-------------------------------------------------------------
+    // Methods - Public
+    //-------------------------------------------------------------
+
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * Add a session to the index.
+     * @param session a session item with a UserId
+     * @return the session
+     */
+    public Item markOpen(Item session) {
+        return session.withInt(SHARD_ATTRIBUTE, Math.floorMod(session.getString("UserId").hashCode(), shards));
+    }
+
+    /**
+     * Remove a session from the index once it is written.
+     * @param session a session item
+     * @return the session
+     */
+    public Item markClosed(Item session) {
+        return session.removeAttribute(SHARD_ATTRIBUTE);
+    }
+
+    /**
+     * @return true if a session is no longer open: it has ended or its entitlement has expired
+     */
+    public boolean isClosed(Item session) {
+        return session.isPresent("EndDateEpochMilli") || session.isPresent("AppStreamEntitlementExpired");
+    }
+
+    /**
+     * Query one shard of the index.
+     * @param table the EntitlementServiceUserSession table
+     * @param shard shard number, from 0 to {@link #getShards()} - 1
+     * @param querySpec query without hash key
+     */
+    public ItemCollection<QueryOutcome> query(Table table, int shard, QuerySpec querySpec) {
+        return table.getIndex(INDEX_NAME).query(querySpec.withHashKey(SHARD_ATTRIBUTE, shard));
+    }
+
+    /**
+     * Query all shards of the index, one after another. Shards are only queried as the items are iterated.
+     * @param table the EntitlementServiceUserSession table
+     * @param querySpec supplies a new query without hash key for each shard
+     * @return the open sessions, ordered by CreationTimeMilli within each shard
+     */
+    public Iterable<Item> queryAll(Table table, Supplier<QuerySpec> querySpec) {
+        return () -> new Iterator<Item>() {
+            private int shard = 0;
+            private Iterator<Item> items = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!items.hasNext() && shard < shards) {
+                    items = query(table, shard++, querySpec.get()).iterator();
+                }
+                return items.hasNext();
+            }
+
+            @Override
+            public Item next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return items.next();
+            }
+        };
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.amazonaws.sample.entitlement.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Page;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+import com.amazonaws.services.dynamodbv2.document.ScanOutcome;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Scans a table with several parallel segments (ScanSpec Segment/TotalSegments) on a bounded thread pool and returns
+ * the pages of all segments as one iterator.
+ *
+ * The number of segments is configured per table with the property
+ * <code>&lt;tableName&gt;ScanSegments</code>, e.g. entitlementServiceUserSessionScanSegments, and defaults to
+ * scanSegments. A segment that is throttled waits for a {@link RetryBackoff} and resumes after its last page.
+ * Segments read ahead at most a few pages, so a slow consumer holds back the scan instead of filling the heap. The
+ * returned {@link Pages} must be closed, which stops segments that are still scanning.
+ */
+@Component
+public class ParallelScanner {
+
+    //-------------------------------------------------------------
+    // Variables - Private
+    //-------------------------------------------------------------
+
+    @Autowired
+    private Environment env;
+
+    @Autowired
+    private RetryBackoff retryBackoff;
+
+    private ExecutorService scanExecutor;
+
+    private Logger log = Logger.getLogger(ParallelScanner.class.getName());
+
+    //-------------------------------------------------------------
+    // Constants
+    //-------------------------------------------------------------
+
+    // marks the end of a segment in a page queue
+    private static final Object END_OF_SEGMENT = new Object();
+
+    //-------------------------------------------------------------
+    // Methods - Public
+    //-------------------------------------------------------------
+
+    @PostConstruct
+    public void initializeExecutor() {
+        int threads = env.getProperty("scanThreads", Integer.class, 16);
+        // segments beyond the threads and the queue are rejected rather than queued without limit
+        scanExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(env.getProperty("scanQueueSize", Integer.class, 64)),
+                new CustomizableThreadFactory("dynamodb-scan-"));
+    }
+
+    @PreDestroy
+    public void shutdownExecutor() {
+        scanExecutor.shutdownNow();
+    }
+
+    /**
+     * Scan a table in parallel segments.
+     * @param table the table to scan
+     * @param tableName logical name of the table, used to look up its segment count
+     * @param scanSpec creates the scan specification, called once per segment and again when a throttled segment
+     *     resumes; must not set a segment or an exclusive start key
+     * @param ordered if true, pages are returned segment by segment in segment order, like a sequential scan of each
+     *     segment; if false, pages are returned as soon as any segment has read them
+     * @return the pages of the scan; close it to stop the scan early
+     * @throws RejectedExecutionException if too many segments of other scans are already waiting for a thread
+     */
+    public Pages scan(Table table, String tableName, Supplier<ScanSpec> scanSpec, boolean ordered) {
+        int segments = getSegments(tableName);
+        int readAheadPages = env.getProperty("scanReadAheadPages", Integer.class, 2);
+        Pages pages = new Pages(segments, ordered, readAheadPages);
+        try {
+            for (int segment = 0; segment < segments; segment++) {
+                BlockingQueue<Object> queue = pages.queues[ordered ? segment : 0];
+                int currentSegment = segment;
+                // full scans give way to interactive requests on the same table
+                pages.workers.add(scanExecutor.submit(() -> CapacityLimiter.runInBackground(
+                        () -> scanSegment(table, scanSpec, currentSegment, segments, queue))));
+            }
+        } catch (RejectedExecutionException e) {
+            pages.close();
+            throw e;
+        }
+        return pages;
+    }
+
+    /**
+     * @return the number of parallel segments of a table
+     */
+    public int getSegments(String tableName) {
+        String property = Character.toLowerCase(tableName.charAt(0)) + tableName.substring(1) + "ScanSegments";
+        return Math.max(1, env.getProperty(property, Integer.class, env.getProperty("scanSegments", Integer.class, 4)));
+    }
+
+    //-------------------------------------------------------------
+    // Methods - Private
+    //-------------------------------------------------------------
+
+    private void scanSegment(Table table, Supplier<ScanSpec> scanSpec, int segment, int segments,
+                             BlockingQueue<Object> queue) {
+        int pageSize = env.getProperty("scanPageSize", Integer.class, 100);
+        PrimaryKey startKey = null;
+        int retries = 0;
+        try {
+            while (true) {
+                ScanSpec spec = scanSpec.get().withSegment(segment).withTotalSegments(segments);
+                if (spec.getMaxPageSize() == null) {
+                    // bounded pages let the capacity limiter estimate each page before it is read
+                    spec.withMaxPageSize(pageSize);
+                }
+                if (startKey != null) {
+                    spec.withExclusiveStartKey(startKey);
+                }
+                try {
+                    for (Page<Item, ScanOutcome> page : table.scan(spec).pages()) {
+                        List<Item> items = new ArrayList<>();
+                        page.forEach(items::add);
+                        if (!items.isEmpty()) {
+                            queue.put(items);
+                        }
+                        startKey = ScanCursor.toPrimaryKey(page.getLowLevelResult().getScanResult().getLastEvaluatedKey());
+                        retries = 0;
+                    }
+                    break;
+                } catch (ProvisionedThroughputExceededException e) {
+                    if (++retries > retryBackoff.getMaxRetries()) {
+                        throw e;
+                    }
+                    retryBackoff.backoff(retries, "Scan of " + table.getTableName() + " segment " + segment + " throttled");
+                }
+            }
+            queue.put(END_OF_SEGMENT);
+        } catch (InterruptedException e) {
+            // the scan was closed
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            // anything else must reach the consumer, which otherwise waits for the segment forever
+            log.error("Scan of " + table.getTableName() + " segment " + segment + " failed: " + e);
+            try {
+                queue.put(e);
+            } catch (InterruptedException closed) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The pages of a parallel scan. Iterating blocks until the next page has been read. A failed segment fails the
+     * iteration with the segment's exception and stops the other segments.
+     */
+    public static final class Pages implements Iterator<List<Item>>, AutoCloseable {
+
+        private final BlockingQueue<Object>[] queues;
+        private final boolean ordered;
+        private final List<Future<?>> workers = new ArrayList<>();
+        private int remainingSegments;
+        private int currentQueue;
+        private List<Item> next;
+
+        @SuppressWarnings("unchecked")
+        private Pages(int segments, boolean ordered, int readAheadPages) {
+            this.ordered = ordered;
+            this.remainingSegments = segments;
+            this.queues = new BlockingQueue[ordered ? segments : 1];
+            for (int i = 0; i < queues.length; i++) {
+                queues[i] = new ArrayBlockingQueue<>(readAheadPages * (ordered ? 1 : segments) + 1);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean hasNext() {
+            while (next == null && remainingSegments > 0) {
+                Object element;
+                try {
+                    element = queues[ordered ? currentQueue : 0].take();
+                } catch (InterruptedException e) {
+                    close();
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for scan results", e);
+                }
+                if (element == END_OF_SEGMENT) {
+                    remainingSegments--;
+                    if (ordered) {
+                        currentQueue++;
+                    }
+                } else if (element instanceof RuntimeException) {
+                    close();
+                    throw (RuntimeException) element;
+                } else if (element instanceof Error) {
+                    close();
+                    throw (Error) element;
+                } else {
+                    next = (List<Item>) element;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public List<Item> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            List<Item> page = next;
+            next = null;
+            return page;
+        }
+
+        /**
+         * Stop all segments that are still scanning.
+         */
+        @Override
+        public void close() {
+            remainingSegments = 0;
+            for (Future<?> worker : workers) {
+                worker.cancel(true);
+            }
+        }
+    }
+}
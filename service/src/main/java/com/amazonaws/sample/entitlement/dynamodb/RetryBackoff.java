@@ -0,0 +1,63 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.amazonaws.sample.entitlement.dynamodb;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with full jitter between retries of throttled DynamoDB work, shared so that all retries are
+ * tuned with one set of properties. The n-th retry waits a random time of up to
+ * min(dynamoDBBackoffMaxMilli, dynamoDBBackoffBaseMilli * 2^n), and the work fails after dynamoDBMaxRetries retries.
+ */
+@Component
+public class RetryBackoff {
+
+    //-------------------------------------------------------------
+    // Variables - Private
+    //-------------------------------------------------------------
+
+    @Value("${dynamoDBMaxRetries:8}") private int dynamoDBMaxRetries;
+    @Value("${dynamoDBBackoffBaseMilli:100}") private long dynamoDBBackoffBaseMilli;
+    @Value("${dynamoDBBackoffMaxMilli:5000}") private long dynamoDBBackoffMaxMilli;
+
+    private Logger log = Logger.getLogger(RetryBackoff.class.getName());
+
+    //-------------------------------------------------------------
+    // Methods - Public
+    //-------------------------------------------------------------
+
+    /**
+     * @return the number of retries after which throttled work fails
+     */
+    public int getMaxRetries() {
+        return dynamoDBMaxRetries;
+    }
+
+    /**
+     * Wait before a retry.
+     * @param retry the number of the retry, starting at 1
+     * @param reason what is retried, for the log
+     * @throws InterruptedException
+     */
+    public void backoff(int retry, String reason) throws InterruptedException {
+        long backoffMilli = Math.min(dynamoDBBackoffMaxMilli, dynamoDBBackoffBaseMilli << Math.min(retry, 20));
+        log.info(reason + ", retrying in up to " + backoffMilli + " ms");
+        Thread.sleep(ThreadLocalRandom.current().nextLong(backoffMilli + 1));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.amazonaws.sample.entitlement.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Converts the LastEvaluatedKey of a query or scan into an opaque cursor string that clients pass back to continue
+ * the listing, and a cursor back into an ExclusiveStartKey.
+ */
+public final class ScanCursor {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    //-------------------------------------------------------------
+    // Constructors - private
+    //-------------------------------------------------------------
+
+    private ScanCursor() { }
+
+    //-------------------------------------------------------------
+    // Static methods - public
+    //-------------------------------------------------------------
+
+    /**
+     * @param lastEvaluatedKey the LastEvaluatedKey of a page, may be null
+     * @return a URL-safe cursor, or null if there are no more pages
+     */
+    public static String encode(Map<String, AttributeValue> lastEvaluatedKey) {
+        if (lastEvaluatedKey == null || lastEvaluatedKey.isEmpty()) {
+            return null;
+        }
+        ObjectNode key = MAPPER.createObjectNode();
+        for (Map.Entry<String, AttributeValue> component : lastEvaluatedKey.entrySet()) {
+            AttributeValue value = component.getValue();
+            if (value.getS() != null) {
+                key.putObject(component.getKey()).put("S", value.getS());
+            } else if (value.getN() != null) {
+                key.putObject(component.getKey()).put("N", value.getN());
+            } else {
+                ByteBuffer bytes = value.getB().duplicate();
+                byte[] b = new byte[bytes.remaining()];
+                bytes.get(b);
+                key.putObject(component.getKey()).put("B", Base64.getEncoder().encodeToString(b));
+            }
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param cursor a cursor returned by {@link #encode(Map)}
+     * @return the key to start the next page after
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public static PrimaryKey decode(String cursor) {
+        JsonNode key;
+        try {
+            key = MAPPER.readTree(Base64.getUrlDecoder().decode(cursor));
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Malformed cursor.", e);
+        }
+        if (key == null || !key.isObject() || key.size() == 0) {
+            throw new IllegalArgumentException("Malformed cursor.");
+        }
+        PrimaryKey primaryKey = new PrimaryKey();
+        for (Iterator<Map.Entry<String, JsonNode>> i = key.fields(); i.hasNext(); ) {
+            Map.Entry<String, JsonNode> component = i.next();
+            JsonNode value = component.getValue();
+            if (value.hasNonNull("S")) {
+                primaryKey.addComponent(component.getKey(), value.get("S").asText());
+            } else if (value.hasNonNull("N")) {
+                primaryKey.addComponent(component.getKey(), new BigDecimal(value.get("N").asText()));
+            } else if (value.hasNonNull("B")) {
+                primaryKey.addComponent(component.getKey(), Base64.getDecoder().decode(value.get("B").asText()));
+            } else {
+                throw new IllegalArgumentException("Malformed cursor.");
+            }
+        }
+        return primaryKey;
+    }
+
+    /**
+     * Key attributes can only be strings, numbers or binary.
+     * @param key a LastEvaluatedKey, may be null
+     * @return the key as a PrimaryKey, or null
+     */
+    public static PrimaryKey toPrimaryKey(Map<String, AttributeValue> key) {
+        if (key == null) {
+            return null;
+        }
+        PrimaryKey primaryKey = new PrimaryKey();
+        for (Map.Entry<String, AttributeValue> component : key.entrySet()) {
+            AttributeValue value = component.getValue();
+            if (value.getS() != null) {
+                primaryKey.addComponent(component.getKey(), value.getS());
+            } else if (value.getN() != null) {
+                primaryKey.addComponent(component.getKey(), new BigDecimal(value.getN()));
+            } else {
+                primaryKey.addComponent(component.getKey(), value.getB());
+            }
+        }
+        return primaryKey;
+    }
+}
@@ -0,0 +1,54 @@
+package com.amazonaws.sample.entitlement.http;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the most recent request latencies in a fixed size ring buffer and computes percentiles over them. Percentiles
+ * are recomputed every few samples rather than on every read so that reads stay cheap under load.
+ */
+public class LatencyPercentiles {
+
+    private static final int RECOMPUTE_EVERY = 32;
+
+    private final AtomicLongArray samples;
+    private final AtomicLong count = new AtomicLong();
+    private final double percentile;
+
+    private volatile long cachedPercentileMilli = -1;
+
+    /**
+     * @param size number of recent samples to keep
+     * @param percentile percentile to compute, between 0 and 1
+     */
+    public LatencyPercentiles(int size, double percentile) {
+        this.samples = new AtomicLongArray(size);
+        this.percentile = percentile;
+    }
+
+    public void record(long latencyMilli) {
+        long n = count.getAndIncrement();
+        samples.set((int) (n % samples.length()), latencyMilli);
+        if ((n + 1) % RECOMPUTE_EVERY == 0) {
+            cachedPercentileMilli = compute();
+        }
+    }
+
+    /**
+     * @return the configured percentile of the recent latencies, or -1 until enough samples were recorded
+     */
+    public long getPercentileMilli() {
+        return cachedPercentileMilli;
+    }
+
+    private long compute() {
+        int size = (int) Math.min(count.get(), samples.length());
+        long[] sorted = new long[size];
+        for (int i = 0; i < size; i++) {
+            sorted[i] = samples.get(i);
+        }
+        Arrays.sort(sorted);
+        return sorted[(int) Math.min(size - 1, Math.ceil(percentile * size) - 1)];
+    }
+}
@@ -0,0 +1,194 @@
+package com.amazonaws.sample.entitlement.http;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.fluent.Executor;
+import org.apache.http.client.fluent.Request;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.springframework.boot.actuate.metrics.GaugeService;
+
+import javax.net.ssl.SSLContext;
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An HTTP client dedicated to one OAuth2 provider, used instead of the shared static executor of the fluent API.
+ *
+ * Each instance has its own connection pool and TLS context, so connections and TLS sessions to the provider are
+ * reused and a slow provider can only exhaust its own pool. Requests wait at most leaseTimeoutMilli for a pooled
+ * connection. The read timeout follows the observed 99th percentile latency of the provider, multiplied by
+ * timeoutMultiplier and kept between minReadTimeoutMilli and maxReadTimeoutMilli.
+ *
+ * Pool usage and lease wait times are published through the actuator {@link GaugeService} as
+ * <code>http.&lt;name&gt;.*</code>.
+ */
+public class ProviderHttpClient implements Closeable {
+
+    //-------------------------------------------------------------
+    // Variables - Private
+    //-------------------------------------------------------------
+
+    private final String name;
+    private final GaugeService gaugeService;
+    private final InstrumentedConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final Executor executor;
+    private final LatencyPercentiles latencies = new LatencyPercentiles(256, 0.99);
+
+    private final int connectTimeoutMilli;
+    private final int minReadTimeoutMilli;
+    private final int maxReadTimeoutMilli;
+    private final double timeoutMultiplier;
+    private final long idleTimeoutMilli;
+
+    //-------------------------------------------------------------
+    // Constructors
+    //-------------------------------------------------------------
+
+    public ProviderHttpClient(String name, GaugeService gaugeService, int maxConnections, int connectTimeoutMilli,
+                              int minReadTimeoutMilli, int maxReadTimeoutMilli, double timeoutMultiplier,
+                              int leaseTimeoutMilli, long keepAliveMilli, long idleTimeoutMilli) {
+        this.name = name;
+        this.gaugeService = gaugeService;
+        this.connectTimeoutMilli = connectTimeoutMilli;
+        this.minReadTimeoutMilli = minReadTimeoutMilli;
+        this.maxReadTimeoutMilli = maxReadTimeoutMilli;
+        this.timeoutMultiplier = timeoutMultiplier;
+        this.idleTimeoutMilli = idleTimeoutMilli;
+
+        SSLContext sslContext;
+        try {
+            // a single SSLContext per provider keeps its client session cache, allowing TLS session resumption
+            sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, null, null);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not create TLS context for " + name, e);
+        }
+        Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(sslContext))
+                .build();
+
+        this.connectionManager = new InstrumentedConnectionManager(socketFactoryRegistry);
+        this.connectionManager.setMaxTotal(maxConnections);
+        this.connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectionRequestTimeout(leaseTimeoutMilli)
+                        .setConnectTimeout(connectTimeoutMilli)
+                        .setSocketTimeout(maxReadTimeoutMilli)
+                        .build())
+                .setKeepAliveStrategy((response, context) -> {
+                    long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return keepAlive > 0 ? Math.min(keepAlive, keepAliveMilli) : keepAliveMilli;
+                })
+                .build();
+        this.executor = Executor.newInstance(httpClient);
+    }
+
+    //-------------------------------------------------------------
+    // Methods - Public
+    //-------------------------------------------------------------
+
+    /**
+     * Execute a request on this provider's connection pool with the current adaptive timeouts.
+     */
+    public <T> T execute(Request request, ResponseHandler<T> handler) throws IOException {
+        int readTimeoutMilli = getReadTimeoutMilli();
+        request.connectTimeout(Math.min(connectTimeoutMilli, readTimeoutMilli)).socketTimeout(readTimeoutMilli);
+        long start = System.nanoTime();
+        try {
+            return executor.execute(request).handleResponse(handler);
+        } finally {
+            latencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            publishPoolStats();
+        }
+    }
+
+    /**
+     * Close expired connections and connections that have been idle for longer than idleTimeoutMilli.
+     */
+    public void evictIdleConnections() {
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(idleTimeoutMilli, TimeUnit.MILLISECONDS);
+        publishPoolStats();
+    }
+
+    public int getReadTimeoutMilli() {
+        long percentileMilli = latencies.getPercentileMilli();
+        if (percentileMilli < 0) {
+            return maxReadTimeoutMilli;
+        }
+        long timeout = (long) (percentileMilli * timeoutMultiplier);
+        return (int) Math.max(minReadTimeoutMilli, Math.min(maxReadTimeoutMilli, timeout));
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+
+    //-------------------------------------------------------------
+    // Methods - Private
+    //-------------------------------------------------------------
+
+    private void publishPoolStats() {
+        PoolStats stats = connectionManager.getTotalStats();
+        gaugeService.submit("http." + name + ".pool.leased", stats.getLeased());
+        gaugeService.submit("http." + name + ".pool.available", stats.getAvailable());
+        gaugeService.submit("http." + name + ".pool.pending", stats.getPending());
+        gaugeService.submit("http." + name + ".pool.saturation", (double) stats.getLeased() / stats.getMax());
+        gaugeService.submit("http." + name + ".readTimeout", getReadTimeoutMilli());
+    }
+
+    /**
+     * Connection manager that measures how long requests wait to lease a pooled connection.
+     */
+    private class InstrumentedConnectionManager extends PoolingHttpClientConnectionManager {
+
+        InstrumentedConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry) {
+            super(socketFactoryRegistry);
+        }
+
+        @Override
+        public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+            final ConnectionRequest connectionRequest = super.requestConnection(route, state);
+            return new ConnectionRequest() {
+                @Override
+                public HttpClientConnection get(long timeout, TimeUnit tunit)
+                        throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                    long start = System.nanoTime();
+                    try {
+                        return connectionRequest.get(timeout, tunit);
+                    } finally {
+                        gaugeService.submit("http." + name + ".pool.leaseWait",
+                                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    }
+                }
+
+                @Override
+                public boolean cancel() {
+                    return connectionRequest.cancel();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.amazonaws.sample.entitlement.http;
+
+/**
+ * The few fields the OAuth2 authorization handlers need from a provider response. Populated by
+ * {@link ProviderResponseHandler} without binding the whole response body.
+ */
+public class ProviderResponse {
+
+    private int statusCode;
+
+    private String id;
+    private String userId;
+    private String email;
+    private String aud;
+    private Long exp;
+
+    // "error" is either an error code (OAuth2) or an object with the fields below (Facebook graph API, Google)
+    private String error;
+    private String errorDescription;
+    private String message;
+    private String errorType;
+    private String errorCode;
+    private String errorSubcode;
+    private boolean errorObject;
+
+    public ProviderResponse(int statusCode) {
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    void setId(String id) {
+        this.id = id;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    void setEmail(String email) {
+        this.email = email;
+    }
+
+    public String getAud() {
+        return aud;
+    }
+
+    void setAud(String aud) {
+        this.aud = aud;
+    }
+
+    /**
+     * @return the "exp" field, or null if the response has none
+     */
+    public Long getExp() {
+        return exp;
+    }
+
+    void setExp(Long exp) {
+        this.exp = exp;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    void setError(String error) {
+        this.error = error;
+    }
+
+    public String getErrorDescription() {
+        return errorDescription;
+    }
+
+    void setErrorDescription(String errorDescription) {
+        this.errorDescription = errorDescription;
+    }
+
+    /**
+     * @return the top level "message" field, or the "message" field of the "error" object
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    void setMessage(String message) {
+        this.message = message;
+    }
+
+    public String getErrorType() {
+        return errorType;
+    }
+
+    void setErrorType(String errorType) {
+        this.errorType = errorType;
+    }
+
+    public String getErrorCode() {
+        return errorCode;
+    }
+
+    void setErrorCode(String errorCode) {
+        this.errorCode = errorCode;
+    }
+
+    public String getErrorSubcode() {
+        return errorSubcode;
+    }
+
+    void setErrorSubcode(String errorSubcode) {
+        this.errorSubcode = errorSubcode;
+    }
+
+    /**
+     * @return true if the response contained an "error" object
+     */
+    public boolean hasErrorObject() {
+        return errorObject;
+    }
+
+    void setErrorObject(boolean errorObject) {
+        this.errorObject = errorObject;
+    }
+
+}
@@ -0,0 +1,110 @@
+package com.amazonaws.sample.entitlement.http;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Like {@link AllStatusesContentResponseHandler} this handler returns a result for responses of any status, but
+ * instead of copying the body into a String it parses the response stream directly and only keeps the fields in
+ * {@link ProviderResponse}. All other fields are skipped. A body that is empty or not JSON yields a response with only
+ * the status code set.
+ */
+public class ProviderResponseHandler implements ResponseHandler<ProviderResponse> {
+
+    // JsonFactory is thread-safe and meant to be shared
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    @Override
+    public ProviderResponse handleResponse(HttpResponse response) throws IOException {
+        ProviderResponse providerResponse = new ProviderResponse(response.getStatusLine().getStatusCode());
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return providerResponse;
+        }
+        try (InputStream content = entity.getContent(); JsonParser parser = JSON_FACTORY.createParser(content)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return providerResponse;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (value == JsonToken.START_OBJECT && "error".equals(field)) {
+                    providerResponse.setErrorObject(true);
+                    parseErrorObject(parser, providerResponse);
+                } else if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+                    parser.skipChildren();
+                } else {
+                    parseField(field, parser, providerResponse);
+                }
+            }
+        } catch (JsonParseException e) {
+            // not a JSON body, e.g. an HTML error page
+        }
+        return providerResponse;
+    }
+
+    private void parseField(String field, JsonParser parser, ProviderResponse providerResponse) throws IOException {
+        switch (field) {
+            case "id":
+                providerResponse.setId(parser.getValueAsString());
+                break;
+            case "user_id":
+                providerResponse.setUserId(parser.getValueAsString());
+                break;
+            case "email":
+                providerResponse.setEmail(parser.getValueAsString());
+                break;
+            case "aud":
+                providerResponse.setAud(parser.getValueAsString());
+                break;
+            case "exp":
+                if (parser.getCurrentToken().isNumeric()) {
+                    providerResponse.setExp(parser.getLongValue());
+                }
+                break;
+            case "error":
+                providerResponse.setError(parser.getValueAsString());
+                break;
+            case "error_description":
+                providerResponse.setErrorDescription(parser.getValueAsString());
+                break;
+            case "message":
+                providerResponse.setMessage(parser.getValueAsString());
+                break;
+        }
+    }
+
+    private void parseErrorObject(JsonParser parser, ProviderResponse providerResponse) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+                parser.skipChildren();
+                continue;
+            }
+            switch (field) {
+                case "message":
+                    providerResponse.setMessage(parser.getValueAsString());
+                    break;
+                case "type":
+                    providerResponse.setErrorType(parser.getValueAsString());
+                    break;
+                case "code":
+                    providerResponse.setErrorCode(parser.getValueAsString());
+                    break;
+                case "error_subcode":
+                    providerResponse.setErrorSubcode(parser.getValueAsString());
+                    break;
+            }
+        }
+    }
+
+}
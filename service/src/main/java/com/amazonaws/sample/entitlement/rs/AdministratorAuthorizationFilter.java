@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.amazonaws.sample.entitlement.rs;
+
+import com.amazonaws.sample.entitlement.exceptions.AuthorizationException;
+import com.amazonaws.sample.entitlement.services.AdministrationService;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Priority;
+import javax.inject.Inject;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.ext.Provider;
+import java.security.Principal;
+
+/**
+ * Authorizes requests to resources annotated with {@link RequiresAdministrator} once, before the resource method is
+ * called. The authorized user item is stored as the request property {@link #USER_PROPERTY} and its Cognito identity
+ * id is the request's user principal. Requests that fail authorization are answered with 401 (Unauthorized).
+ */
+@Component
+@Provider
+@RequiresAdministrator
+@Priority(Priorities.AUTHENTICATION)
+public class AdministratorAuthorizationFilter implements ContainerRequestFilter {
+
+    public static final String USER_PROPERTY = "com.amazonaws.sample.entitlement.user";
+
+    //-------------------------------------------------------------
+    // Variables - Private
+    //-------------------------------------------------------------
+
+    @Inject
+    private AdministrationService administrationService;
+
+    //-------------------------------------------------------------
+    // Methods - Public
+    //-------------------------------------------------------------
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) {
+        Item user;
+        try {
+            user = administrationService.getUserFromAuthorization(requestContext.getHeaderString(HttpHeaders.AUTHORIZATION));
+        } catch (AuthorizationException e) {
+            Response.ResponseBuilder responseBuilder = Response.status(Response.Status.UNAUTHORIZED)
+                    .entity(e.getMessage()).type(MediaType.TEXT_PLAIN);
+            if (e.getAuthenticateHeader() != null) {
+                responseBuilder.header(HttpHeaders.WWW_AUTHENTICATE, e.getAuthenticateHeader());
+            }
+            requestContext.abortWith(responseBuilder.build());
+            return;
+        }
+        requestContext.setProperty(USER_PROPERTY, user);
+        requestContext.setSecurityContext(new UserSecurityContext(user, requestContext.getSecurityContext()));
+    }
+
+    //-------------------------------------------------------------
+    // Methods - Private
+    //-------------------------------------------------------------
+
+    private static class UserSecurityContext implements SecurityContext {
+
+        private final Item user;
+        private final SecurityContext requestSecurityContext;
+
+        UserSecurityContext(Item user, SecurityContext requestSecurityContext) {
+            this.user = user;
+            this.requestSecurityContext = requestSecurityContext;
+        }
+
+        @Override
+        public Principal getUserPrincipal() {
+            return () -> user.getString("id");
+        }
+
+        @Override
+        public boolean isUserInRole(String role) {
+            return role.equals(user.getString("role"));
+        }
+
+        @Override
+        public boolean isSecure() {
+            return requestSecurityContext != null && requestSecurityContext.isSecure();
+        }
+
+        @Override
+        public String getAuthenticationScheme() {
+            return null;
+        }
+    }
+}
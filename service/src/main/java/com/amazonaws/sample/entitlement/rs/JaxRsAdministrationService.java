@@ -16,6 +16,7 @@ package com.amazonaws.sample.entitlement.rs;
 
 import com.amazonaws.sample.entitlement.exceptions.*;
 import com.amazonaws.sample.entitlement.services.AdministrationService;
+import com.amazonaws.sample.entitlement.services.Listing;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
@@ -25,20 +26,28 @@ import javax.inject.Inject;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import java.util.Collections;
-import java.util.Map;
-
-import static javax.ws.rs.core.Response.ResponseBuilder;
+import java.util.concurrent.RejectedExecutionException;
 import static javax.ws.rs.core.Response.Status;
 
 /**
  * A POJO with a JAX-RS (Java API for REST-ful Web Services) annotated method to provide a REST-ful endpoint for requesting
- * administration tasks.
+ * administration tasks. Requests are authorized by {@link AdministratorAuthorizationFilter} before they reach these
+ * methods.
  */
 @Component
 @Path("/api/admin")
+@RequiresAdministrator
 public class JaxRsAdministrationService {
 
+    //-------------------------------------------------------------
+    // Constants
+    //-------------------------------------------------------------
+
+    /**
+     * Response header with the cursor of the next page of a listing. Absent on the last page.
+     */
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
     //-------------------------------------------------------------
     // Variables - Private
     //-------------------------------------------------------------
@@ -51,26 +60,20 @@ public class JaxRsAdministrationService {
     //-------------------------------------------------------------
 
     /**
-     * Get users
-     * @param authorization string that is associated to the identity of the requester
+     * Get users. With a limit or cursor one page is returned, and the cursor of the next page is sent in the
+     * {@value #NEXT_CURSOR_HEADER} header.
      * @return prettified JSON
      */
     @GET
     @Path("/users/")
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getUsers(@HeaderParam("Authorization") String authorization ) {
+    public Response getUsers(@QueryParam("limit") Integer limit, @QueryParam("cursor") String cursor) {
         try {
-            administrationService.getUserFromAuthorization(authorization);
-            String response = administrationService.getUsers();
-            return response(Status.OK, response);
-        } catch (AuthorizationException e) {
-            String authenticateHeader = e.getAuthenticateHeader();
-
-            if (authenticateHeader == null) {
-                return response(Status.UNAUTHORIZED, e.getMessage());
-            } else {
-                return response(Status.UNAUTHORIZED, e.getMessage(), Collections.singletonMap("WWW-Authenticate", authenticateHeader));
-            }
+            return listing(administrationService.getUsers(limit, cursor));
+        } catch (IllegalArgumentException e) {
+            return response(Status.BAD_REQUEST, e.getMessage());
+        } catch (RejectedExecutionException e) {
+            return response(Status.SERVICE_UNAVAILABLE, "Too many concurrent listings, please retry later.");
         } catch (ApplicationBadStateException e) {
             return response(Status.CONFLICT, e.getMessage());
         }
@@ -78,26 +81,16 @@ public class JaxRsAdministrationService {
 
     /**
      * Add user
-     * @param authorization string that is associated to the identity of the requester
      * @return prettified JSON
      */
     @POST
     @Path("/users/")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response addUser(String user, @HeaderParam("Authorization") String authorization) {
+    public Response addUser(String user) {
         try {
-            administrationService.getUserFromAuthorization(authorization);
             String response = administrationService.addUser(user);
             return response(Status.OK, response);
-        } catch (AuthorizationException e) {
-            String authenticateHeader = e.getAuthenticateHeader();
-
-            if (authenticateHeader == null) {
-                return response(Status.UNAUTHORIZED, e.getMessage());
-            } else {
-                return response(Status.UNAUTHORIZED, e.getMessage(), Collections.singletonMap("WWW-Authenticate", authenticateHeader));
-            }
         } catch (ApplicationBadStateException e) {
             return response(Status.CONFLICT, e.getMessage());
         } catch (UserBadIdentifierException e) {
@@ -107,24 +100,14 @@ public class JaxRsAdministrationService {
 
     /**
      * Delete user
-     * @param authorization string that is associated to the identity of the requester
      * @return prettified JSON
      */
     @DELETE
     @Path("/user/{email}")
-    public Response deleteUser(@PathParam("email") String email, @HeaderParam("Authorization") String authorization) {
+    public Response deleteUser(@PathParam("email") String email) {
         try {
-            administrationService.getUserFromAuthorization(authorization);
             administrationService.deleteUser(email);
             return response(Status.OK, "");
-        } catch (AuthorizationException e) {
-            String authenticateHeader = e.getAuthenticateHeader();
-
-            if (authenticateHeader == null) {
-                return response(Status.UNAUTHORIZED, e.getMessage());
-            } else {
-                return response(Status.UNAUTHORIZED, e.getMessage(), Collections.singletonMap("WWW-Authenticate", authenticateHeader));
-            }
         } catch (ApplicationBadStateException e) {
             return response(Status.CONFLICT, e.getMessage());
         }
@@ -132,25 +115,18 @@ public class JaxRsAdministrationService {
 
     /**
      * Get applications
-     * @param authorization string that is associated to the identity of the requester
      * @return prettified JSON
      */
     @GET
     @Path("/applications/")
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getUserApplications(@HeaderParam("Authorization") String authorization ) {
+    public Response getUserApplications(@QueryParam("limit") Integer limit, @QueryParam("cursor") String cursor) {
         try {
-            administrationService.getUserFromAuthorization(authorization);
-            String response = administrationService.getUserApplications();
-            return response(Status.OK, response);
-        } catch (AuthorizationException e) {
-            String authenticateHeader = e.getAuthenticateHeader();
-
-            if (authenticateHeader == null) {
-                return response(Status.UNAUTHORIZED, e.getMessage());
-            } else {
-                return response(Status.UNAUTHORIZED, e.getMessage(), Collections.singletonMap("WWW-Authenticate", authenticateHeader));
-            }
+            return listing(administrationService.getUserApplications(limit, cursor));
+        } catch (IllegalArgumentException e) {
+            return response(Status.BAD_REQUEST, e.getMessage());
+        } catch (RejectedExecutionException e) {
+            return response(Status.SERVICE_UNAVAILABLE, "Too many concurrent listings, please retry later.");
         } catch (ApplicationBadStateException e) {
             return response(Status.CONFLICT, e.getMessage());
         }
@@ -158,26 +134,16 @@ public class JaxRsAdministrationService {
 
     /**
      * Add application
-     * @param authorization string that is associated to the identity of the requester
      * @return prettified JSON
      */
     @POST
     @Path("/applications/")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response addUserApplication(String application, @HeaderParam("Authorization") String authorization) {
+    public Response addUserApplication(String application) {
         try {
-            administrationService.getUserFromAuthorization(authorization);
             String response = administrationService.addUserApplication(application);
             return response(Status.OK, response);
-        } catch (AuthorizationException e) {
-            String authenticateHeader = e.getAuthenticateHeader();
-
-            if (authenticateHeader == null) {
-                return response(Status.UNAUTHORIZED, e.getMessage());
-            } else {
-                return response(Status.UNAUTHORIZED, e.getMessage(), Collections.singletonMap("WWW-Authenticate", authenticateHeader));
-            }
         } catch (ApplicationBadStateException e) {
             return response(Status.CONFLICT, e.getMessage());
         }
@@ -185,23 +151,13 @@ public class JaxRsAdministrationService {
 
     /**
      * Delete application
-     * @param authorization string that is associated to the identity of the requester
      */
     @DELETE
     @Path("/application/{id}")
-    public Response deleteUserApplication(@PathParam("id") String id, @HeaderParam("Authorization") String authorization) {
+    public Response deleteUserApplication(@PathParam("id") String id) {
         try {
-            administrationService.getUserFromAuthorization(authorization);
             administrationService.deleteUserApplication(id);
             return response(Status.OK, "");
-        } catch (AuthorizationException e) {
-            String authenticateHeader = e.getAuthenticateHeader();
-
-            if (authenticateHeader == null) {
-                return response(Status.UNAUTHORIZED, e.getMessage());
-            } else {
-                return response(Status.UNAUTHORIZED, e.getMessage(), Collections.singletonMap("WWW-Authenticate", authenticateHeader));
-            }
         } catch (ApplicationBadStateException e) {
             return response(Status.CONFLICT, e.getMessage());
         }
@@ -209,25 +165,18 @@ public class JaxRsAdministrationService {
 
     /**
      * Get subscriptions
-     * @param authorization string that is associated to the identity of the requester
      * @return prettified JSON
      */
     @GET
     @Path("/subscriptions/")
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getUserSubscriptions(@HeaderParam("Authorization") String authorization ) {
+    public Response getUserSubscriptions(@QueryParam("limit") Integer limit, @QueryParam("cursor") String cursor) {
         try {
-            administrationService.getUserFromAuthorization(authorization);
-            String response = administrationService.getUserSubscriptions();
-            return response(Status.OK, response);
-        } catch (AuthorizationException e) {
-            String authenticateHeader = e.getAuthenticateHeader();
-
-            if (authenticateHeader == null) {
-                return response(Status.UNAUTHORIZED, e.getMessage());
-            } else {
-                return response(Status.UNAUTHORIZED, e.getMessage(), Collections.singletonMap("WWW-Authenticate", authenticateHeader));
-            }
+            return listing(administrationService.getUserSubscriptions(limit, cursor));
+        } catch (IllegalArgumentException e) {
+            return response(Status.BAD_REQUEST, e.getMessage());
+        } catch (RejectedExecutionException e) {
+            return response(Status.SERVICE_UNAVAILABLE, "Too many concurrent listings, please retry later.");
         } catch (ApplicationBadStateException e) {
             return response(Status.CONFLICT, e.getMessage());
         }
@@ -235,26 +184,16 @@ public class JaxRsAdministrationService {
 
     /**
      * Add subscription
-     * @param authorization string that is associated to the identity of the requester
      * @return prettified JSON
      */
     @POST
     @Path("/subscription/")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response addUserSubscription(String subscription, @HeaderParam("Authorization") String authorization) {
+    public Response addUserSubscription(String subscription) {
         try {
-            administrationService.getUserFromAuthorization(authorization);
             String response = administrationService.addUserSubscription(subscription);
             return response(Status.OK, response);
-        } catch (AuthorizationException e) {
-            String authenticateHeader = e.getAuthenticateHeader();
-
-            if (authenticateHeader == null) {
-                return response(Status.UNAUTHORIZED, e.getMessage());
-            } else {
-                return response(Status.UNAUTHORIZED, e.getMessage(), Collections.singletonMap("WWW-Authenticate", authenticateHeader));
-            }
         } catch (ApplicationBadStateException e) {
             return response(Status.CONFLICT, e.getMessage());
         }
@@ -262,23 +201,13 @@ public class JaxRsAdministrationService {
 
     /**
      * Delete subscription
-     * @param authorization string that is associated to the identity of the requester
      */
     @DELETE
     @Path("/subscription/{userId}/{creationTimeMilli}")
-    public Response deleteUserSubscription(@PathParam("userId") String userId, @PathParam("creationTimeMilli") Long creationTimeMilli, @HeaderParam("Authorization") String authorization) {
+    public Response deleteUserSubscription(@PathParam("userId") String userId, @PathParam("creationTimeMilli") Long creationTimeMilli) {
         try {
-            administrationService.getUserFromAuthorization(authorization);
             administrationService.deleteUserSubscription(userId, creationTimeMilli);
             return response(Status.OK, "");
-        } catch (AuthorizationException e) {
-            String authenticateHeader = e.getAuthenticateHeader();
-
-            if (authenticateHeader == null) {
-                return response(Status.UNAUTHORIZED, e.getMessage());
-            } else {
-                return response(Status.UNAUTHORIZED, e.getMessage(), Collections.singletonMap("WWW-Authenticate", authenticateHeader));
-            }
         } catch (ApplicationBadStateException e) {
             return response(Status.CONFLICT, e.getMessage());
         }
@@ -286,25 +215,16 @@ public class JaxRsAdministrationService {
 
     /**
      * Get sessions
-     * @param authorization string that is associated to the identity of the requester
      * @return prettified JSON
      */
     @GET
     @Path("/sessions/")
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getUserSessions(@HeaderParam("Authorization") String authorization ) {
+    public Response getUserSessions(@QueryParam("limit") Integer limit, @QueryParam("cursor") String cursor) {
         try {
-            administrationService.getUserFromAuthorization(authorization);
-            String response = administrationService.getUserSessions();
-            return response(Status.OK, response);
-        } catch (AuthorizationException e) {
-            String authenticateHeader = e.getAuthenticateHeader();
-
-            if (authenticateHeader == null) {
-                return response(Status.UNAUTHORIZED, e.getMessage());
-            } else {
-                return response(Status.UNAUTHORIZED, e.getMessage(), Collections.singletonMap("WWW-Authenticate", authenticateHeader));
-            }
+            return listing(administrationService.getUserSessions(limit, cursor));
+        } catch (IllegalArgumentException e) {
+            return response(Status.BAD_REQUEST, e.getMessage());
         } catch (ApplicationBadStateException e) {
             return response(Status.CONFLICT, e.getMessage());
         }
@@ -312,25 +232,15 @@ public class JaxRsAdministrationService {
 
     /**
      * Get configuration
-     * @param authorization string that is associated to the identity of the requester
      * @return prettified JSON
      */
     @GET
     @Path("/config/")
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getConfiguration(@HeaderParam("Authorization") String authorization ) {
+    public Response getConfiguration() {
         try {
-            administrationService.getUserFromAuthorization(authorization);
             String response = administrationService.getConfiguration();
             return response(Status.OK, response);
-        } catch (AuthorizationException e) {
-            String authenticateHeader = e.getAuthenticateHeader();
-
-            if (authenticateHeader == null) {
-                return response(Status.UNAUTHORIZED, e.getMessage());
-            } else {
-                return response(Status.UNAUTHORIZED, e.getMessage(), Collections.singletonMap("WWW-Authenticate", authenticateHeader));
-            }
         } catch (ApplicationBadStateException e) {
             return response(Status.CONFLICT, e.getMessage());
         }
@@ -338,26 +248,16 @@ public class JaxRsAdministrationService {
 
     /**
      * Set configuration
-     * @param authorization string that is associated to the identity of the requester
      * @return prettified JSON
      */
     @POST
     @Path("/config/")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response setConfiguration(String config, @HeaderParam("Authorization") String authorization) {
+    public Response setConfiguration(String config) {
         try {
-            administrationService.getUserFromAuthorization(authorization);
             String response = administrationService.setConfiguration(config);
             return response(Status.OK, response);
-        } catch (AuthorizationException e) {
-            String authenticateHeader = e.getAuthenticateHeader();
-
-            if (authenticateHeader == null) {
-                return response(Status.UNAUTHORIZED, e.getMessage());
-            } else {
-                return response(Status.UNAUTHORIZED, e.getMessage(), Collections.singletonMap("WWW-Authenticate", authenticateHeader));
-            }
         } catch (ApplicationBadStateException e) {
             return response(Status.CONFLICT, e.getMessage());
         }
@@ -367,18 +267,15 @@ public class JaxRsAdministrationService {
     // Methods - Private
     //-------------------------------------------------------------
 
-    private Response response(Status status, String message) {
-        return Response.status(status).entity(message).type(MediaType.TEXT_PLAIN).build();
-    }
-
-
-    private Response response(Status status, String message, Map<String, String> headers) {
-        ResponseBuilder responseBuilder = Response.status(status).entity(message).type(MediaType.TEXT_PLAIN);
-
-        for (Map.Entry<String, String> header : headers.entrySet()) {
-            responseBuilder.header(header.getKey(), header.getValue());
+    private Response listing(Listing listing) {
+        Response.ResponseBuilder builder = Response.ok(listing.getItems(), MediaType.APPLICATION_JSON);
+        if (listing.getNextCursor() != null) {
+            builder.header(NEXT_CURSOR_HEADER, listing.getNextCursor());
         }
+        return builder.build();
+    }
 
-        return responseBuilder.build();
+    private Response response(Status status, String message) {
+        return Response.status(status).entity(message).type(MediaType.TEXT_PLAIN).build();
     }
 }
@@ -17,14 +17,21 @@ package com.amazonaws.sample.entitlement.services;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.sample.entitlement.authorization.AuthorizationHandler;
 import com.amazonaws.sample.entitlement.authorization.Identity;
+import com.amazonaws.sample.entitlement.dynamodb.OpenSessionsIndex;
+import com.amazonaws.sample.entitlement.dynamodb.ParallelScanner;
+import com.amazonaws.sample.entitlement.dynamodb.ScanCursor;
 import com.amazonaws.sample.entitlement.exceptions.*;
 import com.amazonaws.services.appstream.*;
 import com.amazonaws.services.cognitoidentity.AmazonCognitoIdentityClient;
 import com.amazonaws.services.cognitoidentity.model.*;
 import com.amazonaws.services.dynamodbv2.document.*;
+import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
 import com.amazonaws.services.dynamodbv2.document.utils.NameMap;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
 import com.amazonaws.util.json.JSONObject;
-import org.apache.commons.lang3.StringUtils;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -33,9 +40,11 @@ import org.springframework.cloud.aws.core.env.ResourceIdResolver;
 import org.springframework.stereotype.Component;
 
 import javax.inject.Inject;
+import javax.ws.rs.core.StreamingOutput;
 import java.io.UnsupportedEncodingException;
 import java.time.Instant;
 import java.util.*;
+import java.util.function.Supplier;
 
 /**
  * Provides methods related to authorization, retrieval of AppStream {@link com.amazonaws.services.appstream.Application} objects, user entitlement and
@@ -67,6 +76,9 @@ public class AdministrationService {
     // @see http://tools.ietf.org/html/rfc6585#section-4
     private static final int HTTP_STATUS_TOO_MANY_REQUESTS = 429;
 
+    // JsonFactory is thread-safe and meant to be shared; the response stream is closed by the container
+    private static final JsonFactory JSON_FACTORY = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
     //-------------------------------------------------------------
     // Variables - Private
     //-------------------------------------------------------------
@@ -77,7 +89,11 @@ public class AdministrationService {
 
     @Inject private AppStream appstream;
     @Inject private AuthorizationHandler authorizationHandler;
+    @Inject private SessionTokenService sessionTokenService;
     @Inject private AmazonCognitoIdentityClient cognitoIdentityClient;
+    @Inject private UserItemCache userItemCache;
+    @Inject private ParallelScanner parallelScanner;
+    @Inject private OpenSessionsIndex openSessionsIndex;
 
 
     // Since we have a PolicyBasedAuthorizationHandler, it is safe to default createUserWhenNew to true.
@@ -88,6 +104,10 @@ public class AdministrationService {
     @Value("${createUserWhenNew:false}") private boolean createUserWhenNew;
     @Value("${entitleAllWhenNew:false}") private boolean entitleAllWhenNew;
 
+    // page size of admin listings that pass a cursor but no limit, and upper bound of the limit
+    @Value("${adminPageDefaultLimit:100}") private int pageDefaultLimit;
+    @Value("${adminPageMaxLimit:1000}") private int pageMaxLimit;
+
     private Logger log = Logger.getLogger(AdministrationService.class.getName());
 
     //-------------------------------------------------------------
@@ -105,20 +125,35 @@ public class AdministrationService {
         if (authorization == null) {
             throw new AuthorizationException("Missing Authorization header.");
         }
-        // TODO have to verify the token only
-        Identity thirdPartyIdentity = authorizationHandler.processAuthorization(authorization);
-
-        //TODO  then we have to lookup by email
-        Item user = entitlementServiceUserTable.getItem("id", thirdPartyIdentity.getId());
+        Item user;
+        if (sessionTokenService.isSessionToken(authorization)) {
+            // the role is read again, so that deleted users and role changes apply to tokens already issued
+            String id = sessionTokenService.verify(authorization).getString("id");
+            user = userItemCache.getUser(id);
+            if (user == null) {
+                log.warn("No such user: " + id);
+                throw new UserNotFoundException();
+            }
+        } else {
+            // TODO have to verify the token only
+            Identity thirdPartyIdentity = authorizationHandler.processAuthorization(authorization);
 
-        if (user == null) {
-            if (!createUserWhenNew) {
+            //TODO  then we have to lookup by email
+            if (!createUserWhenNew && !userItemCache.mightBeKnownUser(thirdPartyIdentity.getId())) {
                 log.warn("No such user: " + thirdPartyIdentity.getId());
                 throw new UserNotFoundException();
             }
-            user.withString("id", thirdPartyIdentity.getId());
-            user.withString("email", thirdPartyIdentity.getEmail());
-            entitlementServiceUserTable.putItem(user);
+            user = userItemCache.getUser(thirdPartyIdentity.getId());
+
+            if (user == null) {
+                if (!createUserWhenNew) {
+                    log.warn("No such user: " + thirdPartyIdentity.getId());
+                    throw new UserNotFoundException();
+                }
+                user.withString("id", thirdPartyIdentity.getId());
+                user.withString("email", thirdPartyIdentity.getEmail());
+                entitlementServiceUserTable.putItem(user);
+            }
         }
 
         String role = user.getString("role");
@@ -133,34 +168,21 @@ public class AdministrationService {
     /**
      * Get users
      * @throws ApplicationBadStateException if the application the current request is for is in an error state
-     * @return prettified string of JSON
+     * @param limit maximum number of items to read, or null
+     * @param cursor cursor of the page to read, or null for the first page
+     * @return all items if neither limit nor cursor are given, otherwise one page of items and the next cursor
      */
 
-    public String getUsers()
+    public Listing getUsers(Integer limit, String cursor)
             throws ApplicationBadStateException {
         try {
-            ItemCollection<ScanOutcome> items = entitlementServiceUserTable.scan(
-                    // filter expression
-                    null,
-                    // projection expression
-                    "id, email, #n, #r",
-                    // attribute name substitution
-                    new NameMap()
-                            .with("#n", "name")
-                            .with("#r", "role"),
-                    // attribute value substitution
-                    null
-            );
-            List<String> allItems = new ArrayList<>();
-            // Process each page of results
-            for (Page<Item, ScanOutcome> page : items.pages()) {
-                // Process each item on the current page
-                Iterator<Item> item = page.iterator();
-                while (item.hasNext()) {
-                    allItems.add(item.next().toJSON());
-                }
-            }
-            return "[" + StringUtils.join(allItems, ",") + "]";
+            return list(entitlementServiceUserTable, "EntitlementServiceUser",
+                    () -> new ScanSpec()
+                            .withProjectionExpression("id, email, #n, #r")
+                            .withNameMap(new NameMap()
+                                    .with("#n", "name")
+                                    .with("#r", "role")),
+                    limit, cursor);
         } catch (AmazonServiceException e) {
             if (e.getErrorType().equals(AmazonServiceException.ErrorType.Service)) {
                 log.error("An error occurred while getting data from DynamoDB: " + e);
@@ -186,6 +208,8 @@ public class AdministrationService {
             String cognitoIdentityId = res.getIdentityId();
             userItem.withString("id", cognitoIdentityId);
             entitlementServiceUserTable.putItem(userItem).getItem();
+            userItemCache.invalidate(cognitoIdentityId);
+            userItemCache.addKnownUser(userItem);
             return userItem.toJSONPretty();
         } catch (AmazonServiceException e) {
             if (e.getErrorType().equals(AmazonServiceException.ErrorType.Service)) {
@@ -231,6 +255,7 @@ public class AdministrationService {
                     .withDeveloperProviderName(awsCognitoDeveloperProviderName);
             cognitoIdentityClient.unlinkDeveloperIdentity(unlinkRequest);
             entitlementServiceUserTable.deleteItem("id", cognitoIdentityId);
+            userItemCache.invalidate(cognitoIdentityId);
         } catch (AmazonServiceException e) {
             if (e.getErrorType().equals(AmazonServiceException.ErrorType.Service)) {
                 log.error("An error occurred while getting data from DynamoDB: " + e);
@@ -242,32 +267,18 @@ public class AdministrationService {
     /**
      * Get applications
      * @throws ApplicationBadStateException if the application the current request is for is in an error state
-     * @return prettified string of JSON
+     * @param limit maximum number of items to read, or null
+     * @param cursor cursor of the page to read, or null for the first page
+     * @return all items if neither limit nor cursor are given, otherwise one page of items and the next cursor
      */
 
-    public String getUserApplications()
+    public Listing getUserApplications(Integer limit, String cursor)
             throws ApplicationBadStateException {
         try {
-            ItemCollection<ScanOutcome> items = entitlementServiceUserApplicationTable.scan(
-                    // filter expression
-                    null,
-                    // projection expression
-                    "id, UserApplicationName, UserApplicationDescription, AppStreamApplicationId",
-                    // attribute name substitution
-                    null,
-                    // attribute value substitution
-                    null
-            );
-            List<String> allItems = new ArrayList<>();
-            // Process each page of results
-            for (Page<Item, ScanOutcome> page : items.pages()) {
-                // Process each item on the current page
-                Iterator<Item> item = page.iterator();
-                while (item.hasNext()) {
-                    allItems.add(item.next().toJSON());
-                }
-            }
-            return "[" + StringUtils.join(allItems, ",") + "]";
+            return list(entitlementServiceUserApplicationTable, "EntitlementServiceUserApplication",
+                    () -> new ScanSpec()
+                            .withProjectionExpression("id, UserApplicationName, UserApplicationDescription, AppStreamApplicationId"),
+                    limit, cursor);
         } catch (AmazonServiceException e) {
             // Make the exception just a bit more obvious with an informational message.
             // It may not be obvious where the error occurred with just a stack trace.
@@ -323,32 +334,18 @@ public class AdministrationService {
     /**
      * Get subscriptions
      * @throws ApplicationBadStateException if the application the current request is for is in an error state
-     * @return prettified string of JSON
+     * @param limit maximum number of items to read, or null
+     * @param cursor cursor of the page to read, or null for the first page
+     * @return all items if neither limit nor cursor are given, otherwise one page of items and the next cursor
      */
 
-    public String getUserSubscriptions()
+    public Listing getUserSubscriptions(Integer limit, String cursor)
             throws ApplicationBadStateException {
         try {
-            ItemCollection<ScanOutcome> items = entitlementServiceUserSubscriptionTable.scan(
-                    // filter expression
-                    null,
-                    // projection expression
-                    "Email, UserId, CreationTimeMilli, UserApplicationId, AppStreamApplicationId, UserApplicationDescription, UserApplicationName, PerSessionTimeLimitMilli, TotalCombinedSessionTimeLimitMilli",
-                    // attribute name substitution
-                    null,
-                    // attribute value substitution
-                    null
-            );
-            List<String> allItems = new ArrayList<>();
-            // Process each page of results
-            for (Page<Item, ScanOutcome> page : items.pages()) {
-                // Process each item on the current page
-                Iterator<Item> item = page.iterator();
-                while (item.hasNext()) {
-                    allItems.add(item.next().toJSON());
-                }
-            }
-            return "[" + StringUtils.join(allItems, ",") + "]";
+            return list(entitlementServiceUserSubscriptionTable, "EntitlementServiceUserSubscription",
+                    () -> new ScanSpec()
+                            .withProjectionExpression("Email, UserId, CreationTimeMilli, UserApplicationId, AppStreamApplicationId, UserApplicationDescription, UserApplicationName, PerSessionTimeLimitMilli, TotalCombinedSessionTimeLimitMilli"),
+                    limit, cursor);
         } catch (AmazonServiceException e) {
             if (e.getErrorType().equals(AmazonServiceException.ErrorType.Service)) {
                 log.error("An error occurred while getting data from DynamoDB: " + e);
@@ -407,34 +404,20 @@ public class AdministrationService {
     }
 
     /**
-     * Get subscriptions
+     * Get open sessions from the OpenSessions index
      * @throws ApplicationBadStateException if the application the current request is for is in an error state
-     * @return prettified string of JSON
+     * @param limit maximum number of items to read, or null
+     * @param cursor cursor of the page to read, or null for the first page
+     * @return all items if neither limit nor cursor are given, otherwise one page of items and the next cursor
      */
 
-    public String getUserSessions()
+    public Listing getUserSessions(Integer limit, String cursor)
             throws ApplicationBadStateException {
         try {
-            ItemCollection<ScanOutcome> items = entitlementServiceUserSessionTable.scan(
-                    // filter expression
-                    "attribute_not_exists(AppStreamEntitlementExpired)",
-                    // projection expression
-                    "Email, UserId, CreationTimeMilli, UserApplicationId, AppStreamApplicationId, UserApplicationDescription, UserApplicationName, PerSessionTimeLimitMilli, TotalCombinedSessionTimeLimitMilli",
-                    // attribute name substitution
-                    null,
-                    // attribute value substitution
-                    null
-            );
-            List<String> allItems = new ArrayList<>();
-            // Process each page of results
-            for (Page<Item, ScanOutcome> page : items.pages()) {
-                // Process each item on the current page
-                Iterator<Item> item = page.iterator();
-                while (item.hasNext()) {
-                    allItems.add(item.next().toJSON());
-                }
-            }
-            return "[" + StringUtils.join(allItems, ",") + "]";
+            return listOpenSessions(
+                    () -> new QuerySpec()
+                            .withProjectionExpression("Email, UserId, CreationTimeMilli, UserApplicationId, AppStreamApplicationId, UserApplicationDescription, UserApplicationName, PerSessionTimeLimitMilli, TotalCombinedSessionTimeLimitMilli"),
+                    limit, cursor);
         } catch (AmazonServiceException e) {
             if (e.getErrorType().equals(AmazonServiceException.ErrorType.Service)) {
                 log.error("An error occurred while getting data from DynamoDB: " + e);
@@ -483,4 +466,131 @@ public class AdministrationService {
             throw e;
         }
     }
-}
\ No newline at end of file
+
+    //-------------------------------------------------------------
+    // Methods - Private
+    //-------------------------------------------------------------
+
+    /**
+     * List the items of a table. Without limit and cursor the whole table is scanned in parallel and streamed.
+     * Otherwise one page of at most limit items is read, starting after the cursor.
+     * @throws IllegalArgumentException if limit is not positive or the cursor is malformed
+     */
+    private Listing list(Table table, String tableName, Supplier<ScanSpec> scanSpec, Integer limit, String cursor) {
+        if (limit == null && cursor == null) {
+            return new Listing(streamItems(parallelScanner.scan(table, tableName, scanSpec, false)), null);
+        }
+        if (limit != null && limit < 1) {
+            throw new IllegalArgumentException("limit must be positive.");
+        }
+        ScanSpec spec = scanSpec.get().withMaxPageSize(Math.min(limit != null ? limit : pageDefaultLimit, pageMaxLimit));
+        if (cursor != null) {
+            spec.withExclusiveStartKey(ScanCursor.decode(cursor));
+        }
+        Iterator<Page<Item, ScanOutcome>> pages = table.scan(spec).pages().iterator();
+        if (!pages.hasNext()) {
+            return new Listing(writeItems(Collections.emptyList()), null);
+        }
+        Page<Item, ScanOutcome> page = pages.next();
+        List<Item> items = new ArrayList<>();
+        page.forEach(items::add);
+        return new Listing(writeItems(items),
+                ScanCursor.encode(page.getLowLevelResult().getScanResult().getLastEvaluatedKey()));
+    }
+
+    /**
+     * List open sessions like {@link #list}. A page is read from one shard of the index; the cursor of the first page
+     * of a shard holds only the shard number.
+     * @throws IllegalArgumentException if limit is not positive or the cursor is malformed
+     */
+    private Listing listOpenSessions(Supplier<QuerySpec> querySpec, Integer limit, String cursor) {
+        if (limit == null && cursor == null) {
+            // read the first page here, so that errors reach the caller before the response is committed
+            Iterator<Item> items = openSessionsIndex.queryAll(entitlementServiceUserSessionTable, querySpec).iterator();
+            items.hasNext();
+            return new Listing(writeItems(() -> items), null);
+        }
+        if (limit != null && limit < 1) {
+            throw new IllegalArgumentException("limit must be positive.");
+        }
+        int shard = 0;
+        PrimaryKey startKey = null;
+        if (cursor != null) {
+            startKey = ScanCursor.decode(cursor);
+            KeyAttribute shardKey = startKey.getComponents().stream()
+                    .filter(k -> k.getName().equals(OpenSessionsIndex.SHARD_ATTRIBUTE))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalArgumentException("Malformed cursor."));
+            shard = Integer.parseInt(shardKey.getValue().toString());
+            if (shard < 0 || shard >= openSessionsIndex.getShards()) {
+                throw new IllegalArgumentException("Malformed cursor.");
+            }
+            if (startKey.getComponents().size() == 1) {
+                startKey = null;
+            }
+        }
+        int pageSize = Math.min(limit != null ? limit : pageDefaultLimit, pageMaxLimit);
+        while (true) {
+            QuerySpec spec = querySpec.get().withMaxPageSize(pageSize);
+            if (startKey != null) {
+                spec.withExclusiveStartKey(startKey);
+            }
+            Iterator<Page<Item, QueryOutcome>> pages = openSessionsIndex.query(entitlementServiceUserSessionTable, shard, spec)
+                    .pages().iterator();
+            List<Item> items = new ArrayList<>();
+            String nextCursor = null;
+            if (pages.hasNext()) {
+                Page<Item, QueryOutcome> page = pages.next();
+                page.forEach(items::add);
+                nextCursor = ScanCursor.encode(page.getLowLevelResult().getQueryResult().getLastEvaluatedKey());
+            }
+            if (nextCursor == null && shard + 1 < openSessionsIndex.getShards()) {
+                // continue with the next shard, on this page if this one had nothing left
+                shard++;
+                startKey = null;
+                if (items.isEmpty()) {
+                    continue;
+                }
+                nextCursor = ScanCursor.encode(Collections.singletonMap(OpenSessionsIndex.SHARD_ATTRIBUTE,
+                        new AttributeValue().withN(Integer.toString(shard))));
+            }
+            return new Listing(writeItems(items), nextCursor);
+        }
+    }
+
+    private StreamingOutput writeItems(Iterable<Item> items) {
+        return output -> {
+            try (JsonGenerator generator = JSON_FACTORY.createGenerator(output)) {
+                generator.writeStartArray();
+                for (Item item : items) {
+                    generator.writeRawValue(item.toJSON());
+                }
+                generator.writeEndArray();
+            }
+        };
+    }
+
+    /**
+     * Wait for the first page of a scan and return an output that writes all items as a JSON array, one page at a
+     * time as the pages arrive. Waiting for the first page here lets errors reach the caller before the response is
+     * committed.
+     */
+    private StreamingOutput streamItems(ParallelScanner.Pages pages) {
+        pages.hasNext();
+        return output -> {
+            try (ParallelScanner.Pages scan = pages; JsonGenerator generator = JSON_FACTORY.createGenerator(output)) {
+                generator.writeStartArray();
+                while (scan.hasNext()) {
+                    for (Item item : scan.next()) {
+                        generator.writeRawValue(item.toJSON());
+                    }
+                    generator.flush();
+                }
+                generator.writeEndArray();
+            } catch (AmazonServiceException e) {
+                log.error("An error occurred while getting data from DynamoDB: " + e);
+                throw e;
+            }
+        };
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.amazonaws.sample.entitlement.services;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.sample.entitlement.cache.ExpiringCache;
+import com.amazonaws.sample.entitlement.exceptions.ApplicationNotFoundException;
+import com.amazonaws.services.appstream.AppStream;
+import com.amazonaws.services.appstream.Application;
+import org.apache.http.HttpStatus;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of AppStream {@link Application} handles keyed by application id, shared by {@link EntitlementService} and
+ * the session task. Resolving an application walks the AppStream API from its root; a cached handle already holds
+ * the links to its sessions, so entitling or looking up a session takes a single call.
+ *
+ * Applications used within applicationCacheTtlSeconds are reloaded in the background by {@link #refresh()}, so that
+ * callers only wait for AppStream on the first use of an application. A failed reload keeps the cached handle until
+ * it expires, unless AppStream reports the application as not found. Callers whose call on a handle fails with not
+ * found remove it through {@link #invalidateIfNotFound}, so that the next use resolves the application again. Hits
+ * and misses are published as <code>cache.application.hit</code> and <code>cache.application.miss</code>.
+ */
+@Component
+public class ApplicationCache {
+
+    //-------------------------------------------------------------
+    // Variables - Private
+    //-------------------------------------------------------------
+
+    @Inject private AppStream appstream;
+
+    @Autowired private CounterService counterService;
+
+    @Value("${applicationCacheMaxSize:1000}") private int applicationCacheMaxSize;
+    @Value("${applicationCacheTtlSeconds:300}") private long applicationCacheTtlSeconds;
+    private ExpiringCache<String, Application> applications;
+
+    // time of the last use of each cached application, in epoch milliseconds
+    private final Map<String, Long> lastUsed = new ConcurrentHashMap<>();
+
+    private Logger log = Logger.getLogger(ApplicationCache.class.getName());
+
+    //-------------------------------------------------------------
+    // Methods - Public
+    //-------------------------------------------------------------
+
+    @PostConstruct
+    public void initializeCache() {
+        applications = new ExpiringCache<>("application", applicationCacheMaxSize, applicationCacheTtlSeconds * 1000,
+                counterService);
+    }
+
+    /**
+     * @param applicationId AppStream application id
+     * @return the cached application, or the application loaded from the AppStream service
+     * @throws ApplicationNotFoundException
+     */
+    public Application getApplication(String applicationId)
+            throws ApplicationNotFoundException {
+        Application application = applications.get(applicationId);
+        if (application == null) {
+            try {
+                application = load(applicationId);
+            } catch (RuntimeException e) {
+                log.error(e);
+                throw new ApplicationNotFoundException("The application identified by " + applicationId + " was not found.");
+            }
+        }
+        lastUsed.put(applicationId, Instant.now().toEpochMilli());
+        return application;
+    }
+
+    /**
+     * Remove an application, e.g. after AppStream no longer found it through the cached handle.
+     */
+    public void invalidate(String applicationId) {
+        applications.invalidate(applicationId);
+        lastUsed.remove(applicationId);
+    }
+
+    /**
+     * Remove an application if a call on its cached handle failed because AppStream did not find it.
+     * @param applicationId AppStream application id
+     * @param e the failure of the call
+     */
+    public void invalidateIfNotFound(String applicationId, AmazonServiceException e) {
+        if (isNotFound(e)) {
+            log.info("Application " + applicationId + " was not found through its cached handle");
+            invalidate(applicationId);
+        }
+    }
+
+    /**
+     * Reload the applications used within the time to live and drop the others. An application that cannot be
+     * reloaded keeps its cached handle, unless AppStream no longer finds it.
+     */
+    public void refresh() {
+        long unusedSince = Instant.now().toEpochMilli() - applicationCacheTtlSeconds * 1000;
+        for (Map.Entry<String, Long> application : lastUsed.entrySet()) {
+            if (application.getValue() < unusedSince) {
+                invalidate(application.getKey());
+                continue;
+            }
+            try {
+                load(application.getKey());
+            } catch (AmazonServiceException e) {
+                log.warn("Could not reload application " + application.getKey() + ": " + e.getMessage());
+                invalidateIfNotFound(application.getKey(), e);
+            } catch (RuntimeException e) {
+                log.warn("Could not reload application " + application.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    //-------------------------------------------------------------
+    // Methods - Private
+    //-------------------------------------------------------------
+
+    private Application load(String applicationId) {
+        Application application = appstream.getApplications().getById(applicationId);
+        applications.put(applicationId, application);
+        return application;
+    }
+
+    private static boolean isNotFound(AmazonServiceException e) {
+        return e.getStatusCode() == HttpStatus.SC_NOT_FOUND;
+    }
+}
@@ -18,6 +18,7 @@ import com.amazonaws.AmazonServiceException;
 import com.amazonaws.AmazonServiceException.ErrorType;
 import com.amazonaws.sample.entitlement.authorization.AuthorizationHandler;
 import com.amazonaws.sample.entitlement.authorization.Identity;
+import com.amazonaws.sample.entitlement.dynamodb.OpenSessionsIndex;
 import com.amazonaws.sample.entitlement.exceptions.ApplicationBadStateException;
 import com.amazonaws.sample.entitlement.exceptions.ApplicationNotFoundException;
 import com.amazonaws.sample.entitlement.exceptions.AuthorizationException;
@@ -25,7 +26,6 @@ import com.amazonaws.sample.entitlement.exceptions.MaxSessionsLimitExceededExcep
 import com.amazonaws.sample.entitlement.exceptions.SessionActiveException;
 import com.amazonaws.sample.entitlement.exceptions.UserNotEntitledException;
 import com.amazonaws.sample.entitlement.exceptions.UserNotFoundException;
-import com.amazonaws.services.appstream.AppStream;
 import com.amazonaws.services.appstream.Application;
 import com.amazonaws.services.appstream.EntitleSessionInput;
 import com.amazonaws.services.appstream.Session;
@@ -68,8 +68,12 @@ public class EntitlementService {
     private Table entitlementServiceUserSessionTable;
     private Table entitlementServiceUserSubscriptionTable;
 
-    @Inject private AppStream appstream;
     @Inject private AuthorizationHandler authorizationHandler;
+    @Inject private SessionTokenService sessionTokenService;
+    @Inject private UserItemCache userItemCache;
+    @Inject private OpenSessionsIndex openSessionsIndex;
+    @Inject private ApplicationCache applicationCache;
+    @Inject private SessionDeadlines sessionDeadlines;
 
     @Value("${createUserWhenNew:false}") private boolean createUserWhenNew;
     @Value("${entitleAllWhenNew:false}") private boolean entitleAllWhenNew;
@@ -92,10 +96,24 @@ public class EntitlementService {
         if (authorization == null) {
             throw new AuthorizationException("Missing Authorization header.");
         }
+        if (sessionTokenService.isSessionToken(authorization)) {
+            // tokens of deleted users are rejected; deleteUser removes the user from the cache
+            String id = sessionTokenService.verify(authorization).getString("id");
+            Item user = userItemCache.getUser(id);
+            if (user == null) {
+                log.warn("No such user: " + id);
+                throw new UserNotFoundException();
+            }
+            return user;
+        }
 
         Identity thirdPartyIdentity = authorizationHandler.processAuthorization(authorization);
 
-        Item user = entitlementServiceUserTable.getItem("id", thirdPartyIdentity.getId());
+        if (!createUserWhenNew && !userItemCache.mightBeKnownUser(thirdPartyIdentity.getId())) {
+            log.warn("No such user: " + thirdPartyIdentity.getId());
+            throw new UserNotFoundException();
+        }
+        Item user = userItemCache.getUser(thirdPartyIdentity.getId());
         log.info(thirdPartyIdentity.getId());
 
         if (user == null) {
@@ -117,20 +135,14 @@ public class EntitlementService {
 
 
     /**
-     * Retrieve an Application object from the AppStream service.
+     * Retrieve an Application object from the AppStream service through the shared {@link ApplicationCache}.
      * @param applicationId AppStream application id
      * @return an AppStream Application
      * @throws ApplicationNotFoundException
      */
     public Application getApplication(String applicationId)
             throws ApplicationNotFoundException {
-        try {
-            return appstream.getApplications().getById(applicationId);
-        } catch (Exception e) {
-            log.error(e);
-
-            throw new ApplicationNotFoundException("The application identified by " + applicationId + " was not found.");
-        }
+        return applicationCache.getApplication(applicationId);
     }
 
     /**
@@ -256,7 +268,10 @@ public class EntitlementService {
                     .withString("AppStreamEntitlementUrl", session.getEntitlementUrl())
                     .withLong("AppStreamEntitlementUrlValidTimeMilli", 350000)
                ;
+            openSessionsIndex.markOpen(userSession);
             entitlementServiceUserSessionTable.putItem(userSession).getItem();
+            // terminate if the entitlement URL expires unused
+            sessionDeadlines.schedule(userSession, retrievedSubscription);
            // send back session
            return userSession.toJSONPretty();
         } catch (AmazonServiceException e) {
@@ -285,6 +300,7 @@ public class EntitlementService {
 
             session = application.entitleSession(entitleSessionInput);
         } catch (AmazonServiceException e) {
+            applicationCache.invalidateIfNotFound(application.getId(), e);
             if (e.getErrorType().equals(AmazonServiceException.ErrorType.Service)) {
                 log.error("An error occurred in the AppStream service while entitling a session for app: " + application.getId(), e);
             } else if (ErrorType.Client == e.getErrorType()) {
@@ -314,6 +330,7 @@ public class EntitlementService {
             EntitleSessionInput entitleSessionInput = new EntitleSessionInput();
             session = application.entitleSession(entitleSessionInput);
         } catch (AmazonServiceException e) {
+            applicationCache.invalidateIfNotFound(application.getId(), e);
             if (e.getErrorType().equals(AmazonServiceException.ErrorType.Service)) {
                 log.error("An error occurred in the AppStream service while entitling a session for app: " + application.getId(), e);
             } else if (ErrorType.Client == e.getErrorType()) {
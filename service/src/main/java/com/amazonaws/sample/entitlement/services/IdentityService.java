@@ -17,6 +17,7 @@ package com.amazonaws.sample.entitlement.services;
 import com.amazonaws.sample.entitlement.authorization.AuthorizationHandler;
 import com.amazonaws.sample.entitlement.authorization.Identity;
 import com.amazonaws.sample.entitlement.exceptions.AuthorizationException;
+import com.amazonaws.services.dynamodbv2.document.Item;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
@@ -37,6 +38,8 @@ public class IdentityService {
     //-------------------------------------------------------------
 
     @Inject private AuthorizationHandler authorizationHandler;
+    @Inject private SessionTokenService sessionTokenService;
+    @Inject private UserItemCache userItemCache;
 
     private Logger log = Logger.getLogger(EntitlementService.class.getName());
     private ObjectMapper mapper = new ObjectMapper();
@@ -46,7 +49,8 @@ public class IdentityService {
     //-------------------------------------------------------------
 
     /**
-     * Given an authorization string return an OpenId token and Developer Cognito Identity Id.
+     * Given an authorization string return an OpenId token and Developer Cognito Identity Id. For known users the
+     * result also includes a session token that authorizes further requests until the OpenId token expires.
      * @param authorization value from authorization header
      * @return a String with JSON object with IdentityId and Token
      * @throws AuthorizationException
@@ -59,6 +63,13 @@ public class IdentityService {
 
         Identity thirdPartyIdentity = authorizationHandler.processAuthorization(authorization);
 
+        if (sessionTokenService.isEnabled() && userItemCache.mightBeKnownUser(thirdPartyIdentity.getId())) {
+            Item user = userItemCache.getUser(thirdPartyIdentity.getId());
+            if (user != null) {
+                thirdPartyIdentity.setSessionToken(sessionTokenService.issue(user, thirdPartyIdentity.getExpires()));
+            }
+        }
+
         return thirdPartyIdentity;
     }
 
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.amazonaws.sample.entitlement.services;
+
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * A JSON array of items, either a whole table or one page of it, and the cursor of the following page.
+ */
+public class Listing {
+
+    private final StreamingOutput items;
+    private final String nextCursor;
+
+    public Listing(StreamingOutput items, String nextCursor) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+
+    public StreamingOutput getItems() {
+        return items;
+    }
+
+    /**
+     * @return the cursor of the next page, or null if this is the last page or the whole table
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.amazonaws.sample.entitlement.services;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * In-memory index of the next deadline of each open session known to this node, shared by {@link EntitlementService}
+ * and the session task. The deadline of a session is the first moment it is past one of its time limits: the expiry
+ * of its entitlement URL while it has not started, or the earlier of PerSessionTimeLimitMilli and the remaining
+ * TotalCombinedSessionTimeLimitMilli of its subscription once it has started.
+ *
+ * Deadlines are kept in the delay queue of a scheduled executor and handed to the handler of the session task when
+ * they are reached, which checks the session against AppStream and schedules its next deadline. A deadline is never
+ * scheduled sooner than sessionDeadlineRecheckMilli from now, so that a session AppStream is still terminating is
+ * checked again shortly rather than continuously. How late deadlines are handled is published as
+ * <code>sessions.deadlines.lateMilli</code> and the number of scheduled deadlines as
+ * <code>sessions.deadlines.scheduled</code>.
+ */
+@Component
+public class SessionDeadlines {
+
+    //-------------------------------------------------------------
+    // Variables - Private
+    //-------------------------------------------------------------
+
+    @Autowired private GaugeService gaugeService;
+
+    @Value("${sessionDeadlineThreads:2}") private int sessionDeadlineThreads;
+    @Value("${sessionDeadlineRecheckMilli:1000}") private long sessionDeadlineRecheckMilli;
+
+    private ScheduledThreadPoolExecutor deadlineExecutor;
+    private final Map<String, Deadline> deadlines = new ConcurrentHashMap<>();
+    private volatile Consumer<Item> handler;
+
+    private Logger log = Logger.getLogger(SessionDeadlines.class.getName());
+
+    //-------------------------------------------------------------
+    // Methods - Public
+    //-------------------------------------------------------------
+
+    @PostConstruct
+    public void initializeExecutor() {
+        deadlineExecutor = new ScheduledThreadPoolExecutor(sessionDeadlineThreads,
+                new CustomizableThreadFactory("session-deadline-"));
+        deadlineExecutor.setRemoveOnCancelPolicy(true);
+    }
+
+    @PreDestroy
+    public void shutdownExecutor() {
+        deadlineExecutor.shutdownNow();
+    }
+
+    /**
+     * @param handler checks a session whose deadline is reached; until it is set, reached deadlines are dropped
+     */
+    public void setHandler(Consumer<Item> handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Schedule the next deadline of a session, replacing its previous one, or remove it if the session is closed.
+     * Only call this once the session is written, since the handler checks it as it is stored.
+     * @param session a session item; a copy is kept, so the caller may go on changing it
+     * @param subscription the session's subscription, or null to ignore the combined time limit
+     */
+    public void schedule(Item session, Item subscription) {
+        Long deadlineMilli = deadlineOf(session, subscription);
+        if (deadlineMilli == null) {
+            cancel(session);
+            return;
+        }
+        String key = key(session);
+        long nowMilli = Instant.now().toEpochMilli();
+        long delayMilli = Math.max(deadlineMilli - nowMilli, sessionDeadlineRecheckMilli);
+        Deadline deadline = new Deadline(key, Item.fromMap(session.asMap()), nowMilli + delayMilli);
+        Deadline previous = deadlines.put(key, deadline);
+        if (previous != null) {
+            previous.cancel();
+        }
+        deadline.future = deadlineExecutor.schedule(deadline, delayMilli, TimeUnit.MILLISECONDS);
+        gaugeService.submit("sessions.deadlines.scheduled", deadlines.size());
+    }
+
+    /**
+     * Remove the deadline of a session.
+     */
+    public void cancel(Item session) {
+        Deadline deadline = deadlines.remove(key(session));
+        if (deadline != null) {
+            deadline.cancel();
+        }
+    }
+
+    /**
+     * @param session a session item
+     * @param subscription the session's subscription, or null to ignore the combined time limit
+     * @return the first epoch millisecond at which the session is past one of its time limits, or null if it is closed
+     */
+    public static Long deadlineOf(Item session, Item subscription) {
+        if (session.isPresent("EndDateEpochMilli") || session.isPresent("AppStreamEntitlementExpired")) {
+            return null;
+        }
+        if (!session.isPresent("StartDateEpochMilli")) {
+            // AppStream default entitlement URL validity
+            long validEntitledTimeMilli = 60000;
+            if (session.isPresent("AppStreamEntitlementUrlValidTimeMilli")) {
+                validEntitledTimeMilli = session.getLong("AppStreamEntitlementUrlValidTimeMilli");
+            }
+            return session.getLong("CreationTimeMilli") + validEntitledTimeMilli + 1;
+        }
+        long limitMilli = session.getLong("PerSessionTimeLimitMilli");
+        if (subscription != null) {
+            limitMilli = Math.min(limitMilli, subscription.getLong("TotalCombinedSessionTimeLimitMilli"));
+        }
+        return session.getLong("StartDateEpochMilli") + limitMilli + 1;
+    }
+
+    //-------------------------------------------------------------
+    // Methods - Private
+    //-------------------------------------------------------------
+
+    private static String key(Item session) {
+        return session.getString("UserId") + "/" + session.getLong("CreationTimeMilli");
+    }
+
+    private class Deadline implements Runnable {
+
+        private final String key;
+        private final Item session;
+        private final long dueMilli;
+        private volatile ScheduledFuture<?> future;
+
+        private Deadline(String key, Item session, long dueMilli) {
+            this.key = key;
+            this.session = session;
+            this.dueMilli = dueMilli;
+        }
+
+        @Override
+        public void run() {
+            if (!deadlines.remove(key, this)) {
+                // replaced or cancelled while due
+                return;
+            }
+            gaugeService.submit("sessions.deadlines.lateMilli", Math.max(0, Instant.now().toEpochMilli() - dueMilli));
+            Consumer<Item> sessionHandler = handler;
+            if (sessionHandler == null) {
+                return;
+            }
+            try {
+                sessionHandler.accept(session);
+            } catch (RuntimeException e) {
+                // the next run of the session task schedules the session again
+                log.error("Failed to check session " + session.getString("AppStreamSessionId") + " at its deadline", e);
+            }
+        }
+
+        private void cancel() {
+            ScheduledFuture<?> scheduled = future;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.amazonaws.sample.entitlement.services;
+
+import com.amazonaws.sample.entitlement.exceptions.AuthorizationException;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Properties;
+
+/**
+ * Issues and verifies the service's own session tokens.
+ *
+ * A session token carries the Cognito identity id, email and role of a user and is signed with HMAC-SHA256. Once a
+ * user has been authorized through a third-party provider, the token authorizes further requests without calls to
+ * the provider or Amazon Cognito. The services still look the user up in the {@link UserItemCache}, so that a
+ * deleted user or a changed role applies to tokens already issued.
+ *
+ * The signing keys are read from the EntitlementServiceConfiguration table: sessionTokenKeyId and sessionTokenKey
+ * (Base64) sign new tokens, sessionTokenPreviousKeyId and sessionTokenPreviousKey are still accepted so that keys
+ * can be rotated without invalidating tokens in use. Without a sessionTokenKey no session tokens are issued.
+ */
+@Component
+public class SessionTokenService {
+
+    //-------------------------------------------------------------
+    // Constants
+    //-------------------------------------------------------------
+
+    /**
+     * Authorization strings with a session token start with this value.
+     */
+    public static final String AUTHORIZATION_TYPE = "EntitlementSession";
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    //-------------------------------------------------------------
+    // Variables - Private
+    //-------------------------------------------------------------
+
+    @Autowired
+    @Qualifier("configuration")
+    private Properties cognitoProperties;
+
+    @Value("${sessionTokenTtlSeconds:900}") private long sessionTokenTtlSeconds;
+
+    private ObjectMapper mapper = new ObjectMapper();
+
+    private Logger log = Logger.getLogger(SessionTokenService.class.getName());
+
+    //-------------------------------------------------------------
+    // Methods - Public
+    //-------------------------------------------------------------
+
+    /**
+     * @return true if a signing key is configured
+     */
+    public boolean isEnabled() {
+        return cognitoProperties.getProperty("sessionTokenKey") != null;
+    }
+
+    /**
+     * @param authorization value from authorization header
+     * @return true if the authorization string carries a session token
+     */
+    public boolean isSessionToken(String authorization) {
+        return authorization != null && authorization.trim().startsWith(AUTHORIZATION_TYPE + " ");
+    }
+
+    /**
+     * Issue a session token for a user.
+     * @param user the user item, at least with id and email
+     * @param expires time in epoch milliseconds after which the token must not be accepted, or null
+     * @return the session token, expiring at the earlier of expires and sessionTokenTtlSeconds from now, or null if
+     * no signing key is configured
+     */
+    public String issue(Item user, Long expires) {
+        String keyId = cognitoProperties.getProperty("sessionTokenKeyId", "");
+        String key = cognitoProperties.getProperty("sessionTokenKey");
+        if (key == null) {
+            return null;
+        }
+        long expiresMilli = Instant.now().toEpochMilli() + sessionTokenTtlSeconds * 1000;
+        if (expires != null) {
+            expiresMilli = Math.min(expiresMilli, expires);
+        }
+        ObjectNode claims = mapper.createObjectNode()
+                .put("id", user.getString("id"))
+                .put("email", user.getString("email"))
+                .put("exp", expiresMilli);
+        if (user.getString("role") != null) {
+            claims.put("role", user.getString("role"));
+        }
+        String signedContent = keyId + "." + encode(claims.toString().getBytes(StandardCharsets.UTF_8));
+        return signedContent + "." + encode(sign(key, signedContent));
+    }
+
+    /**
+     * Verify the session token of an authorization string.
+     * @param authorization value from authorization header, starting with {@link #AUTHORIZATION_TYPE}
+     * @return a user item with the id, email and role from the token
+     * @throws AuthorizationException if the token is malformed, not signed by a current key or has expired
+     */
+    public Item verify(String authorization) throws AuthorizationException {
+        String token = authorization.trim().substring(AUTHORIZATION_TYPE.length()).trim();
+        String[] parts = token.split("\\.");
+        if (parts.length != 3) {
+            throw new AuthorizationException("Malformed session token.", AUTHORIZATION_TYPE);
+        }
+        String key = getKey(parts[0]);
+        if (key == null) {
+            throw new AuthorizationException("Session token is signed with an unknown key.", AUTHORIZATION_TYPE);
+        }
+        JsonNode claims;
+        try {
+            byte[] signature = Base64.getUrlDecoder().decode(parts[2]);
+            if (!MessageDigest.isEqual(signature, sign(key, parts[0] + "." + parts[1]))) {
+                throw new AuthorizationException("Invalid session token signature.", AUTHORIZATION_TYPE);
+            }
+            claims = mapper.readTree(Base64.getUrlDecoder().decode(parts[1]));
+        } catch (IOException | IllegalArgumentException e) {
+            throw new AuthorizationException("Malformed session token.", AUTHORIZATION_TYPE);
+        }
+        if (claims.path("exp").asLong(0) <= Instant.now().toEpochMilli()) {
+            throw new AuthorizationException("Session token has expired.", AUTHORIZATION_TYPE);
+        }
+
+        Item user = new Item()
+                .withPrimaryKey("id", claims.path("id").asText())
+                .withString("email", claims.path("email").asText());
+        if (claims.hasNonNull("role")) {
+            user.withString("role", claims.get("role").asText());
+        }
+        return user;
+    }
+
+    //-------------------------------------------------------------
+    // Methods - Private
+    //-------------------------------------------------------------
+
+    /**
+     * @return the configured key with the given key id, or null
+     */
+    private String getKey(String keyId) {
+        if (keyId.equals(cognitoProperties.getProperty("sessionTokenKeyId", ""))) {
+            return cognitoProperties.getProperty("sessionTokenKey");
+        }
+        if (keyId.equals(cognitoProperties.getProperty("sessionTokenPreviousKeyId", ""))) {
+            return cognitoProperties.getProperty("sessionTokenPreviousKey");
+        }
+        return null;
+    }
+
+    private byte[] sign(String key, String content) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(Base64.getDecoder().decode(key), ALGORITHM));
+            return mac.doFinal(content.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            log.error("Could not sign session token: " + e.getMessage());
+            throw new IllegalStateException("Invalid session token key configuration.", e);
+        }
+    }
+
+    private String encode(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+}
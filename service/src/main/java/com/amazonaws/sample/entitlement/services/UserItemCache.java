@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.amazonaws.sample.entitlement.services;
+
+import com.amazonaws.sample.entitlement.cache.BloomFilter;
+import com.amazonaws.sample.entitlement.cache.ExpiringCache;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.cloud.aws.core.env.ResourceIdResolver;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read-through cache of EntitlementServiceUser items keyed by Cognito identity id, shared by
+ * {@link EntitlementService} and {@link AdministrationService}, so that authorizing a known user does not read the
+ * user table on every request. Users that do not exist are not cached. Hits and misses are published as
+ * <code>cache.user.hit</code> and <code>cache.user.miss</code>.
+ *
+ * A Bloom filter of the ids and emails of all users is rebuilt periodically from a scan of the user table and
+ * extended by {@link #addKnownUser(Item)}, so that identities that are definitely not users can be rejected without
+ * reading the table. Deleted users stay in the filter until the next rebuild, which only costs a table read.
+ */
+@Component
+public class UserItemCache {
+
+    //-------------------------------------------------------------
+    // Variables - Private
+    //-------------------------------------------------------------
+
+    private Table entitlementServiceUserTable;
+
+    @Autowired private CounterService counterService;
+
+    @Value("${userCacheMaxSize:10000}") private int userCacheMaxSize;
+    @Value("${userCacheTtlSeconds:60}") private long userCacheTtlSeconds;
+    private ExpiringCache<String, Item> users;
+
+    @Value("${userFilterMinCapacity:1000}") private int userFilterMinCapacity;
+    @Value("${userFilterFalsePositiveRate:0.01}") private double userFilterFalsePositiveRate;
+    // null until the first rebuild completed
+    private volatile BloomFilter knownUsers;
+    // users added while a rebuild scans the table, so that the new filter does not miss them
+    private volatile Set<String> addedDuringRebuild;
+
+    private Logger log = Logger.getLogger(UserItemCache.class.getName());
+
+    //-------------------------------------------------------------
+    // Constructors
+    //-------------------------------------------------------------
+
+    @Inject
+    public UserItemCache(ResourceIdResolver resourceIdResolver, DynamoDB dynamoDBDocument) {
+        this.entitlementServiceUserTable = dynamoDBDocument.getTable(resourceIdResolver.resolveToPhysicalResourceId("EntitlementServiceUser"));
+    }
+
+    //-------------------------------------------------------------
+    // Methods - Public
+    //-------------------------------------------------------------
+
+    @PostConstruct
+    public void initializeCache() {
+        users = new ExpiringCache<>("user", userCacheMaxSize, userCacheTtlSeconds * 1000, counterService);
+    }
+
+    /**
+     * @param id Cognito identity id
+     * @return the user item, or null if there is no such user
+     */
+    public Item getUser(String id) {
+        Item user = users.get(id);
+        if (user == null) {
+            user = entitlementServiceUserTable.getItem("id", id);
+            if (user != null) {
+                users.put(id, user);
+            }
+        }
+        return user;
+    }
+
+    /**
+     * @param id Cognito identity id
+     * @return false if the user definitely does not exist, true if the user might exist or the filter of known users
+     * has not been built yet
+     */
+    public boolean mightBeKnownUser(String id) {
+        BloomFilter filter = knownUsers;
+        return filter == null || filter.mightContain(id);
+    }
+
+    /**
+     * Record a new user in the filter of known users.
+     * @param user a user item with id and email
+     */
+    public void addKnownUser(Item user) {
+        for (String value : new String[] {user.getString("id"), user.getString("email")}) {
+            if (value == null) {
+                continue;
+            }
+            Set<String> added = addedDuringRebuild;
+            if (added != null) {
+                added.add(value);
+            }
+            BloomFilter filter = knownUsers;
+            if (filter != null) {
+                filter.add(value);
+            }
+        }
+    }
+
+    /**
+     * Rebuild the filter of known users from a scan of the user table. The filter is sized for twice the current
+     * number of users so that users added until the next rebuild keep the false positive rate low.
+     */
+    public void rebuildKnownUsers() {
+        addedDuringRebuild = ConcurrentHashMap.newKeySet();
+        List<String> values = new ArrayList<>();
+        for (Item user : entitlementServiceUserTable.scan(new ScanSpec().withProjectionExpression("id, email"))) {
+            values.add(user.getString("id"));
+            if (user.isPresent("email")) {
+                values.add(user.getString("email"));
+            }
+        }
+        BloomFilter filter = new BloomFilter(Math.max(userFilterMinCapacity, values.size() * 2),
+                userFilterFalsePositiveRate);
+        values.forEach(filter::add);
+        knownUsers = filter;
+        // users added during the scan; later additions go to the new filter directly
+        Set<String> added = addedDuringRebuild;
+        addedDuringRebuild = null;
+        added.forEach(filter::add);
+        log.info("Rebuilt filter of known users from " + values.size() + " ids and emails");
+    }
+
+    /**
+     * Remove a user from the cache after the user's item was changed or deleted.
+     * @param id Cognito identity id
+     */
+    public void invalidate(String id) {
+        users.invalidate(id);
+    }
+}
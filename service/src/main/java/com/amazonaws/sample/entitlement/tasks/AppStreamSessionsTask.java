@@ -1,163 +1,606 @@
 package com.amazonaws.sample.entitlement.tasks;
 
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.sample.entitlement.dynamodb.BatchReader;
+import com.amazonaws.sample.entitlement.dynamodb.CapacityLimiter;
+import com.amazonaws.sample.entitlement.dynamodb.ItemChanges;
+import com.amazonaws.sample.entitlement.dynamodb.OpenSessionsIndex;
+import com.amazonaws.sample.entitlement.dynamodb.ParallelScanner;
 import com.amazonaws.sample.entitlement.exceptions.ApplicationNotFoundException;
+import com.amazonaws.sample.entitlement.services.ApplicationCache;
+import com.amazonaws.sample.entitlement.services.SessionDeadlines;
 import com.amazonaws.services.appstream.*;
 import com.amazonaws.services.dynamodbv2.document.*;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.PutItemSpec;
 import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
 import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.NameMap;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
 import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
 import org.springframework.cloud.aws.core.env.ResourceIdResolver;
+import org.springframework.cloud.aws.core.env.stack.StackResourceRegistry;
+import org.springframework.scheduling.TaskScheduler;
 import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.*;
 
 @Component
 public class AppStreamSessionsTask {
 
-    @Inject private AppStream appstream;
+    @Inject private ParallelScanner parallelScanner;
+    @Inject private OpenSessionsIndex openSessionsIndex;
+    @Inject private BatchReader batchReader;
+    @Inject private ApplicationCache applicationCache;
+    @Inject private SessionDeadlines sessionDeadlines;
+
+    @Autowired private CounterService counterService;
+    @Autowired private TaskScheduler taskScheduler;
+    @Autowired private GaugeService gaugeService;
+
+    @Value("${openSessionsBackfill:false}") private boolean openSessionsBackfill;
+    @Value("${sessionReconcileIntervalMilli:300000}") private long sessionReconcileIntervalMilli;
+    @Value("${sessionReconcileCatchUpMilli:30000}") private long sessionReconcileCatchUpMilli;
+    @Value("${sessionReconcileThreads:1}") private int sessionReconcileThreads;
+    @Value("${sessionReconcilePerApplication:4}") private int sessionReconcilePerApplication;
+    @Value("${sessionReconcileBatchSize:100}") private int sessionReconcileBatchSize;
+    @Value("${sessionReconcileBudgetItems:1000}") private int sessionReconcileBudgetItems;
+    @Value("${sessionReconcileBudgetMilli:20000}") private long sessionReconcileBudgetMilli;
+
+    // null unless sessionReconcileThreads enables the parallel mode
+    private ExecutorService reconcileExecutor;
+    private long lastRunStartMilli;
 
     private Table entitlementServiceUserSessionTable;
     private Table entitlementServiceUserSubscriptionTable;
+    private Table entitlementServiceConfigurationTable;
+    // key of the configuration table item holding the position of the session runs
+    private String checkpointId;
 
     private Logger log = Logger.getLogger(AppStreamSessionsTask.class.getName());
 
     @Inject
-    public AppStreamSessionsTask(ResourceIdResolver resourceIdResolver, Properties cognitoProperties, DynamoDB dynamoDBDocument) {
+    public AppStreamSessionsTask(ResourceIdResolver resourceIdResolver, Properties cognitoProperties, DynamoDB dynamoDBDocument, StackResourceRegistry stackResourceRegistry) {
         this.entitlementServiceUserSessionTable = dynamoDBDocument.getTable(resourceIdResolver.resolveToPhysicalResourceId("EntitlementServiceUserSession"));
         this.entitlementServiceUserSubscriptionTable = dynamoDBDocument.getTable(resourceIdResolver.resolveToPhysicalResourceId("EntitlementServiceUserSubscription"));
+        this.entitlementServiceConfigurationTable = dynamoDBDocument.getTable(resourceIdResolver.resolveToPhysicalResourceId("EntitlementServiceConfiguration"));
+        this.checkpointId = stackResourceRegistry.getStackName() + "/SessionCheckpoint";
         log.info("Running Worker");
     }
 
-    @Scheduled(fixedRate = 20000)
+    /**
+     * Add open sessions that were started before the OpenSessions index existed to the index. Enabled by
+     * openSessionsBackfill, which only needs to be set for the first start after an upgrade. The scan runs on the task
+     * scheduler, so that it does not delay the start of the service.
+     */
+    @PostConstruct
+    public void backfillOpenSessions() {
+        if (openSessionsBackfill) {
+            taskScheduler.execute(() -> CapacityLimiter.runInBackground(this::addOpenSessionsToIndex));
+        }
+    }
+
+    private void addOpenSessionsToIndex() {
+        int count = 0;
+        try (ParallelScanner.Pages pages = parallelScanner.scan(entitlementServiceUserSessionTable, "EntitlementServiceUserSession",
+                () -> new ScanSpec()
+                        .withFilterExpression("attribute_not_exists(EndDateEpochMilli) AND attribute_not_exists(AppStreamEntitlementExpired) AND attribute_not_exists(" + OpenSessionsIndex.SHARD_ATTRIBUTE + ")"),
+                false)) {
+            while (pages.hasNext()) {
+                for (Item session : pages.next()) {
+                    // only the shard is written, and only while the session is still open, so that changes made by
+                    // other nodes since the scan are kept
+                    try {
+                        entitlementServiceUserSessionTable.updateItem(new UpdateItemSpec()
+                                .withPrimaryKey("UserId", session.getString("UserId"), "CreationTimeMilli", session.getLong("CreationTimeMilli"))
+                                .withUpdateExpression("SET #shard = :shard")
+                                .withConditionExpression("attribute_not_exists(EndDateEpochMilli) AND attribute_not_exists(AppStreamEntitlementExpired)")
+                                .withNameMap(new NameMap().with("#shard", OpenSessionsIndex.SHARD_ATTRIBUTE))
+                                .withValueMap(new ValueMap().withInt(":shard", openSessionsIndex.markOpen(session).getInt(OpenSessionsIndex.SHARD_ATTRIBUTE))));
+                        count++;
+                    } catch (ConditionalCheckFailedException e) {
+                        // ended since the scan
+                    }
+                }
+            }
+        }
+        log.info("Added " + count + " open sessions to the open sessions index");
+    }
+
+    /**
+     * Check all open sessions. Time limits are enforced at their deadlines by {@link #checkAtDeadline}; this run is the
+     * safety net that records sessions ended in AppStream and schedules the deadlines of sessions this node has not
+     * seen yet, e.g. after a restart or sessions started on another node.
+     *
+     * A pass over all open sessions starts every sessionReconcileIntervalMilli. A pass that does not fit the budget of
+     * one run is continued every sessionReconcileCatchUpMilli until it is complete, so that a large number of open
+     * sessions lengthens a pass by short runs rather than by whole intervals.
+     */
+    @Scheduled(fixedRateString = "${sessionReconcileCatchUpMilli:30000}")
     public void getApplicationStatus() {
+        CapacityLimiter.runInBackground(this::reconcileSessions);
+    }
+
+    @PostConstruct
+    public void registerDeadlineHandler() {
+        sessionDeadlines.setHandler(this::checkAtDeadline);
+    }
+
+    /**
+     * Check a single session whose deadline is reached, terminate it if it is past a time limit and write it.
+     */
+    private void checkAtDeadline(Item session) {
+        CapacityLimiter.runInBackground(() -> {
+            Application appstreamApplication;
+            try {
+                appstreamApplication = getApplication(session.getString("AppStreamApplicationId"));
+            } catch (ApplicationNotFoundException e) {
+                log.error(e);
+                return;
+            }
+            Map<String, Item> subscriptions = new HashMap<>();
+            readSubscriptions(Collections.singletonList(session), subscriptions);
+            Runnable sessionWrite = reconcileSession(appstreamApplication, session, subscriptions);
+            if (sessionWrite != null) {
+                sessionWrite.run();
+            }
+        });
+    }
+
+    /**
+     * Create the worker pool of the parallel mode, enabled by a sessionReconcileThreads greater than 1.
+     */
+    @PostConstruct
+    public void initializeExecutor() {
+        if (sessionReconcileThreads > 1) {
+            reconcileExecutor = new ThreadPoolExecutor(sessionReconcileThreads, sessionReconcileThreads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), new CustomizableThreadFactory("session-reconcile-"));
+        }
+    }
+
+    @PreDestroy
+    public void shutdownExecutor() {
+        if (reconcileExecutor != null) {
+            reconcileExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Work through the open sessions from where the previous run stopped, in chunks of sessionReconcileBatchSize
+     * sessions in index order, until sessionReconcileBudgetItems sessions are checked, sessionReconcileBudgetMilli has
+     * passed or all sessions are checked. The position after each chunk is saved in the configuration table, so a run
+     * after a restart, or on another node, continues from there. A pass over all open sessions may therefore take
+     * several runs. Without a pass in progress, a run only starts a new pass once it is due.
+     */
+    private void reconcileSessions() {
+        long startMilli = Instant.now().toEpochMilli();
+        // how late this run started compared to its schedule
+        if (lastRunStartMilli > 0) {
+            gaugeService.submit("sessions.reconcile.lagMilli", Math.max(0, startMilli - lastRunStartMilli - sessionReconcileCatchUpMilli));
+        }
+        lastRunStartMilli = startMilli;
+        Item checkpoint = readCheckpoint();
+        boolean passInProgress = checkpoint != null && checkpoint.isPresent(OpenSessionsIndex.SHARD_ATTRIBUTE);
+        long passStartMilli = passInProgress && checkpoint.isPresent("PassStartMilli") ? checkpoint.getLong("PassStartMilli") : startMilli;
+        // sessions not visited in this pass were last visited in the previous one
+        long previousPassStartMilli = checkpoint != null && checkpoint.isPresent("PreviousPassStartMilli") ? checkpoint.getLong("PreviousPassStartMilli") : passStartMilli;
+        if (!passInProgress && checkpoint != null && checkpoint.isPresent("NextPassMilli") && checkpoint.getLong("NextPassMilli") > startMilli) {
+            // the next pass is not due yet
+            gaugeService.submit("sessions.reconcile.unvisitedAgeMilli", startMilli - previousPassStartMilli);
+            return;
+        }
         log.info("Running DES Session Management Task");
-        // filter out ended and expired sessions
-        ScanSpec scanSpec = new ScanSpec()
-                .withFilterExpression("attribute_not_exists(EndDateEpochMilli) AND attribute_not_exists(AppStreamEntitlementExpired)");
-        ItemCollection<ScanOutcome> items = entitlementServiceUserSessionTable.scan(scanSpec);
-        for (Page<Item, ScanOutcome> page : items.pages()) {
-            Iterator<Item> item = page.iterator();
-            while (item.hasNext()) {
-                Item session = item.next();
-                try {
-                    // get info from AppStream
-                    Application appstreamApplication = getApplication(session.getString("AppStreamApplicationId"));
-                    // get session
-                    Session appstreamSession = appstreamApplication.getSessionById(session.getString("AppStreamSessionId"));
-                    // get session state
-                    String state = appstreamSession.getStatus().getState().toString();
-                    log.info(appstreamSession.getId() + " [" + state + "]");
-                    // get subscription
-                    Item subscription = entitlementServiceUserSubscriptionTable.getItem("UserId", session.getString("UserId"), "CreationTimeMilli", session.getLong("UserSubscriptionCreationTimeMilli"));
-                    if (subscription == null) {
-                      log.info("Missing subscription: " +  session.getString("UserId") + session.getLong("UserSubscriptionCreationTimeMilli"));
-                    }
-                    switch (state) {
-                        // TODO don't process already ended sessions
-                        case "Entitled":
-                            // terminate if past valid and not started
-                            Long entitleTimeMilli = session.getLong("CreationTimeMilli");
-                            // AppStream default entitlement URL validity
-                            Long validEntitledTimeMilli = new Long(60000);
-                            if (session.isPresent("AppStreamEntitlementUrlValidTimeMilli")) {
-                                validEntitledTimeMilli = session.getLong("AppStreamEntitlementUrlValidTimeMilli");
-                            }
-                            // calculate elapsed running time
-                            Long elapsedEntitledMilli = (Instant.now().toEpochMilli() - entitleTimeMilli);
-                            if (elapsedEntitledMilli > validEntitledTimeMilli) {
-                                log.info("Terminating for past entitled state session time limit: " + validEntitledTimeMilli);
-                                // terminate
-                                SessionStatus newStatus = appstreamSession.terminate(new TerminateSessionInput());
-                                // update session state
-                                session.withString("AppStreamSessionState", newStatus.getState().toString());
-                                // set endDate
-                                session.with("AppStreamEntitlementExpired", true);
-                            }
-                            break;
-                        case "Terminated":
-                        case "Completed":
-                            if (session.getString("EndDateEpochMilli") == null) {
-                                // get and save startDate
-                                Long startDateEpochMilli = appstreamSession.getStartDate().toInstant().toEpochMilli();
-                                session.with("StartDateEpochMilli", startDateEpochMilli);
-                                log.info("StartDateEpochMilli: " + startDateEpochMilli);
-                                // get and save endDate
-                                Long endDateEpochMilli = appstreamSession.getEndDate().toInstant().toEpochMilli();
-                                session.with("EndDateEpochMilli", endDateEpochMilli);
-                                log.info("EndDateEpochMilli: " + endDateEpochMilli);
-                                if (subscription != null) {
-                                    // calculate remaining total subscription running time
-                                    Long totalCombinedSessionTimeLimitMilli = subscription.getLong("TotalCombinedSessionTimeLimitMilli");
-                                    log.info("Total Combined Session Limit Milliseconds: " + totalCombinedSessionTimeLimitMilli);
-                                    // calculate remaining total subscription running time
-                                    Long remainingTotalCombinedSessionTimeLimitMilli = totalCombinedSessionTimeLimitMilli - (endDateEpochMilli - startDateEpochMilli);
-                                    log.info("Remaining Combined Session Limit Milliseconds: " + remainingTotalCombinedSessionTimeLimitMilli);
-                                    // update subscription with remaining subscription time
-                                    subscription.withLong("TotalCombinedSessionTimeLimitMilli", remainingTotalCombinedSessionTimeLimitMilli);
-                                }
-                                // update session in DynamoDB with status
-                                session.with("AppStreamSessionState", state);
-                            }
-                            break;
-                        case "Active":
-                            // get session start date
-                            Long startDateEpochMilli = appstreamSession.getStartDate().toInstant().toEpochMilli();
-                            session.with("StartDateEpochMilli", startDateEpochMilli);
-                            log.info("StartDateEpochMilli: " + startDateEpochMilli);
-                            Long perSessionTimeLimitMilli = Long.valueOf(session.getString("PerSessionTimeLimitMilli"));
-                            log.info("Per Session Time Limit Milliseconds: " + perSessionTimeLimitMilli);
-                            // calculate elapsed running time
-                            Long elapsedMilli = (Instant.now().toEpochMilli() - startDateEpochMilli);
-                            log.info("Elapsed Time Milliseconds: " + elapsedMilli);
-                            // terminate if past session time
-                            if (elapsedMilli > perSessionTimeLimitMilli) {
-                                SessionStatus newStatus = appstreamSession.terminate(new TerminateSessionInput());
-                                log.info("Terminating for past session time limit: " + perSessionTimeLimitMilli);
-                                session.withString("AppStreamSessionState", newStatus.getState().toString());
-                            }
-                            // if no subscription then just work with session end time
-                            if (subscription != null) {
-                                // get session time limit and remaining total subscription running time limit
-                                Long totalCombinedSessionTimeLimitMilli = subscription.getLong("TotalCombinedSessionTimeLimitMilli");
-                                log.info("Total Combined Session Time Limit Milliseconds: " + startDateEpochMilli);
-                                // terminate if past total combined session time
-                                if (elapsedMilli > totalCombinedSessionTimeLimitMilli) {
-                                    log.info("Terminating for past total combined time limit: " + totalCombinedSessionTimeLimitMilli);
-                                    SessionStatus newStatus = appstreamSession.terminate(new TerminateSessionInput());
-                                    session.withString("AppStreamSessionState", newStatus.getState().toString());
-                                }
+        // subscriptions read during this run, by subscriptionKey
+        Map<String, Item> subscriptions = new HashMap<>();
+        int shard = 0;
+        PrimaryKey startKey = null;
+        // a position beyond the shards is left after openSessionShards was lowered and starts the pass over
+        if (checkpoint != null && checkpoint.isPresent(OpenSessionsIndex.SHARD_ATTRIBUTE)
+                && checkpoint.getInt(OpenSessionsIndex.SHARD_ATTRIBUTE) < openSessionsIndex.getShards()) {
+            shard = checkpoint.getInt(OpenSessionsIndex.SHARD_ATTRIBUTE);
+            if (checkpoint.isPresent("UserId")) {
+                startKey = new PrimaryKey(OpenSessionsIndex.SHARD_ATTRIBUTE, shard, "CreationTimeMilli", checkpoint.getLong("CreationTimeMilli"), "UserId", checkpoint.getString("UserId"));
+            }
+        }
+        int count = 0;
+        long checkMilli = 0;
+        while (shard < openSessionsIndex.getShards()) {
+            if (count >= sessionReconcileBudgetItems || Instant.now().toEpochMilli() - startMilli >= sessionReconcileBudgetMilli) {
+                break;
+            }
+            int chunkSize = Math.min(sessionReconcileBatchSize, sessionReconcileBudgetItems - count);
+            QuerySpec querySpec = new QuerySpec().withMaxResultSize(chunkSize);
+            if (startKey != null) {
+                querySpec.withExclusiveStartKey(startKey);
+            }
+            List<Item> sessions = new ArrayList<>();
+            openSessionsIndex.query(entitlementServiceUserSessionTable, shard, querySpec).forEach(sessions::add);
+            checkMilli += checkSessions(sessions, subscriptions);
+            count += sessions.size();
+            if (sessions.size() < chunkSize) {
+                // end of the shard
+                shard++;
+                startKey = null;
+            } else {
+                startKey = new PrimaryKey(OpenSessionsIndex.SHARD_ATTRIBUTE, shard, "CreationTimeMilli", last(sessions).getLong("CreationTimeMilli"), "UserId", last(sessions).getString("UserId"));
+            }
+            if (sessions.isEmpty() && shard < openSessionsIndex.getShards()) {
+                continue;
+            }
+            Item next = new Item();
+            if (shard >= openSessionsIndex.getShards()) {
+                // all sessions visited, the next pass starts an interval after this one started
+                gaugeService.submit("sessions.reconcile.passMilli", Instant.now().toEpochMilli() - passStartMilli);
+                previousPassStartMilli = passStartMilli;
+                next.withLong("PreviousPassStartMilli", previousPassStartMilli)
+                        .withLong("NextPassMilli", passStartMilli + sessionReconcileIntervalMilli);
+            } else {
+                next.withLong("PassStartMilli", passStartMilli)
+                        .withLong("PreviousPassStartMilli", previousPassStartMilli)
+                        .withInt(OpenSessionsIndex.SHARD_ATTRIBUTE, shard);
+                if (startKey != null) {
+                    next.withLong("CreationTimeMilli", last(sessions).getLong("CreationTimeMilli"))
+                            .withString("UserId", last(sessions).getString("UserId"));
+                }
+            }
+            checkpoint = saveCheckpoint(checkpoint, next);
+            if (checkpoint == null) {
+                log.info("Session checkpoint was moved by another node, stopping this run");
+                break;
+            }
+        }
+        long endMilli = Instant.now().toEpochMilli();
+        if (endMilli - startMilli > sessionReconcileCatchUpMilli) {
+            // the next run is already due and starts late
+            counterService.increment("sessions.reconcile.overrun");
+            log.warn("Session run took " + (endMilli - startMilli) + " ms, longer than its interval of " + sessionReconcileCatchUpMilli + " ms");
+        }
+        gaugeService.submit("sessions.reconcile.unvisitedAgeMilli", endMilli - previousPassStartMilli);
+        gaugeService.submit("sessions.reconcile.sessions", count);
+        gaugeService.submit("sessions.reconcile.checkMilli", checkMilli);
+        gaugeService.submit("sessions.reconcile.durationMilli", endMilli - startMilli);
+        log.info("Checked " + count + " open sessions in " + (endMilli - startMilli) + " ms");
+    }
+
+    /**
+     * Check sessions in two phases: first every session is checked against AppStream and terminated when it is past
+     * a time limit, then the changed sessions are written. Writes therefore never delay a termination.
+     *
+     * In the parallel mode both phases are spread over the worker pool. The sessions of an application are taken
+     * from a shared queue by at most sessionReconcilePerApplication workers, so that one application with many
+     * sessions cannot occupy every worker nor send AppStream more than that many concurrent calls.
+     * @param sessions open sessions
+     * @param subscriptions subscriptions by {@link #subscriptionKey} read so far in this run; the missing ones are
+     *     added
+     * @return duration of the first phase in milliseconds
+     */
+    private long checkSessions(List<Item> sessions, Map<String, Item> subscriptions) {
+        long startMilli = Instant.now().toEpochMilli();
+        // sessions by AppStream application, so that each application is resolved once per chunk
+        Map<String, List<Item>> sessionsByApplication = new LinkedHashMap<>();
+        for (Item session : sessions) {
+            sessionsByApplication.computeIfAbsent(session.getString("AppStreamApplicationId"), id -> new ArrayList<>()).add(session);
+        }
+        Map<String, Application> applications = new LinkedHashMap<>();
+        List<Item> checkedSessions = new ArrayList<>();
+        for (Map.Entry<String, List<Item>> applicationSessions : sessionsByApplication.entrySet()) {
+            try {
+                applications.put(applicationSessions.getKey(), getApplication(applicationSessions.getKey()));
+                checkedSessions.addAll(applicationSessions.getValue());
+            } catch (ApplicationNotFoundException e) {
+                log.error(e);
+            }
+        }
+        // read before the checks start, so that they only read the map
+        readSubscriptions(checkedSessions, subscriptions);
+        // writes of changed sessions, made once all sessions are checked
+        Queue<Runnable> sessionWrites = new ConcurrentLinkedQueue<>();
+        List<Future<?>> checks = new ArrayList<>();
+        for (Map.Entry<String, Application> application : applications.entrySet()) {
+            Application appstreamApplication = application.getValue();
+            Queue<Item> applicationSessions = new ConcurrentLinkedQueue<>(sessionsByApplication.get(application.getKey()));
+            int workers = reconcileExecutor == null ? 1 : Math.min(sessionReconcilePerApplication, applicationSessions.size());
+            for (int worker = 0; worker < workers; worker++) {
+                checks.add(run(() -> {
+                    for (Item session = applicationSessions.poll(); session != null; session = applicationSessions.poll()) {
+                        try {
+                            Runnable sessionWrite = reconcileSession(appstreamApplication, session, subscriptions);
+                            if (sessionWrite != null) {
+                                sessionWrites.add(sessionWrite);
                             }
-                            break;
+                        } catch (RuntimeException e) {
+                            log.error("Failed to check session " + session.getString("AppStreamSessionId"), e);
+                        }
+                    }
+                }));
+            }
+        }
+        await(checks);
+        long checkedMilli = Instant.now().toEpochMilli();
+        List<Future<?>> writes = new ArrayList<>();
+        for (int worker = 0; worker < (reconcileExecutor == null ? 1 : sessionReconcileThreads); worker++) {
+            writes.add(run(() -> {
+                for (Runnable sessionWrite = sessionWrites.poll(); sessionWrite != null; sessionWrite = sessionWrites.poll()) {
+                    try {
+                        sessionWrite.run();
+                    } catch (RuntimeException e) {
+                        log.error("Failed to write session", e);
                     }
-                    // save
-                    entitlementServiceUserSessionTable.putItem(session);
-                    if (subscription != null) {
-                        entitlementServiceUserSubscriptionTable.putItem(subscription);
+                }
+            }));
+        }
+        await(writes);
+        return checkedMilli - startMilli;
+    }
+
+    private Item last(List<Item> items) {
+        return items.get(items.size() - 1);
+    }
+
+    /**
+     * @return the position of the session runs, or null if there is none yet
+     */
+    private Item readCheckpoint() {
+        return entitlementServiceConfigurationTable.getItem(new GetItemSpec()
+                .withPrimaryKey("StackId", checkpointId)
+                .withConsistentRead(true));
+    }
+
+    /**
+     * Replace the position of the session runs, unless another node replaced it since it was read.
+     * @param checkpoint the position as read, or null if there was none
+     * @param next the new position, without key and version
+     * @return the saved position, or null if another node replaced it
+     */
+    private Item saveCheckpoint(Item checkpoint, Item next) {
+        long version = checkpoint == null ? 0 : checkpoint.getLong("CheckpointVersion");
+        next.withPrimaryKey("StackId", checkpointId).withLong("CheckpointVersion", version + 1);
+        PutItemSpec put = new PutItemSpec().withItem(next);
+        if (checkpoint == null) {
+            put.withConditionExpression("attribute_not_exists(StackId)");
+        } else {
+            put.withConditionExpression("CheckpointVersion = :version")
+                    .withValueMap(new ValueMap().withLong(":version", version));
+        }
+        try {
+            entitlementServiceConfigurationTable.putItem(put);
+            return next;
+        } catch (ConditionalCheckFailedException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Run a task on the worker pool in the background lane of the {@link CapacityLimiter}, or in the calling thread
+     * when the parallel mode is disabled.
+     */
+    private Future<?> run(Runnable task) {
+        if (reconcileExecutor == null) {
+            task.run();
+            return CompletableFuture.completedFuture(null);
+        }
+        return reconcileExecutor.submit(() -> CapacityLimiter.runInBackground(task));
+    }
+
+    private void await(List<Future<?>> futures) {
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while reconciling sessions", e);
+            } catch (ExecutionException e) {
+                log.error(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Check an open session against AppStream, terminate it when it is past one of its time limits and record its
+     * state, start and end in the item.
+     * @param appstreamApplication the session's AppStream application
+     * @param session an open session
+     * @param subscriptions subscriptions by {@link #subscriptionKey}, including the session's
+     * @return the write of the session's changes, which then schedules its next deadline, or null if nothing changed
+     */
+    private Runnable reconcileSession(Application appstreamApplication, Item session, Map<String, Item> subscriptions) {
+        ItemChanges sessionChanges = new ItemChanges(session, "UserId", "CreationTimeMilli");
+        // get session
+        Session appstreamSession;
+        try {
+            appstreamSession = appstreamApplication.getSessionById(session.getString("AppStreamSessionId"));
+        } catch (AmazonServiceException e) {
+            // the cached handle may be of an application that was deleted and recreated
+            applicationCache.invalidateIfNotFound(session.getString("AppStreamApplicationId"), e);
+            throw e;
+        }
+        // get session state
+        String state = appstreamSession.getStatus().getState().toString();
+        log.info(appstreamSession.getId() + " [" + state + "]");
+        // get subscription
+        Item subscription = subscriptions.get(subscriptionKey(session.getString("UserId"), session.getLong("UserSubscriptionCreationTimeMilli")));
+        if (subscription == null) {
+          log.info("Missing subscription: " +  session.getString("UserId") + session.getLong("UserSubscriptionCreationTimeMilli"));
+        }
+        switch (state) {
+            // TODO don't process already ended sessions
+            case "Entitled":
+                // terminate if past valid and not started
+                Long entitleTimeMilli = session.getLong("CreationTimeMilli");
+                // AppStream default entitlement URL validity
+                Long validEntitledTimeMilli = new Long(60000);
+                if (session.isPresent("AppStreamEntitlementUrlValidTimeMilli")) {
+                    validEntitledTimeMilli = session.getLong("AppStreamEntitlementUrlValidTimeMilli");
+                }
+                // calculate elapsed running time
+                Long elapsedEntitledMilli = (Instant.now().toEpochMilli() - entitleTimeMilli);
+                if (elapsedEntitledMilli > validEntitledTimeMilli) {
+                    log.info("Terminating for past entitled state session time limit: " + validEntitledTimeMilli);
+                    // terminate
+                    SessionStatus newStatus = appstreamSession.terminate(new TerminateSessionInput());
+                    // update session state
+                    session.withString("AppStreamSessionState", newStatus.getState().toString());
+                    // set endDate
+                    session.with("AppStreamEntitlementExpired", true);
+                }
+                break;
+            case "Terminated":
+            case "Completed":
+                if (session.getString("EndDateEpochMilli") == null) {
+                    // get and save startDate
+                    Long startDateEpochMilli = appstreamSession.getStartDate().toInstant().toEpochMilli();
+                    session.with("StartDateEpochMilli", startDateEpochMilli);
+                    log.info("StartDateEpochMilli: " + startDateEpochMilli);
+                    // get and save endDate
+                    Long endDateEpochMilli = appstreamSession.getEndDate().toInstant().toEpochMilli();
+                    session.with("EndDateEpochMilli", endDateEpochMilli);
+                    log.info("EndDateEpochMilli: " + endDateEpochMilli);
+                    // update session in DynamoDB with status
+                    session.with("AppStreamSessionState", state);
+                }
+                break;
+            case "Active":
+                // get session start date
+                Long startDateEpochMilli = appstreamSession.getStartDate().toInstant().toEpochMilli();
+                session.with("StartDateEpochMilli", startDateEpochMilli);
+                log.info("StartDateEpochMilli: " + startDateEpochMilli);
+                Long perSessionTimeLimitMilli = Long.valueOf(session.getString("PerSessionTimeLimitMilli"));
+                log.info("Per Session Time Limit Milliseconds: " + perSessionTimeLimitMilli);
+                // calculate elapsed running time
+                Long elapsedMilli = (Instant.now().toEpochMilli() - startDateEpochMilli);
+                log.info("Elapsed Time Milliseconds: " + elapsedMilli);
+                // terminate if past session time
+                if (elapsedMilli > perSessionTimeLimitMilli) {
+                    SessionStatus newStatus = appstreamSession.terminate(new TerminateSessionInput());
+                    log.info("Terminating for past session time limit: " + perSessionTimeLimitMilli);
+                    session.withString("AppStreamSessionState", newStatus.getState().toString());
+                }
+                // if no subscription then just work with session end time
+                if (subscription != null) {
+                    // get session time limit and remaining total subscription running time limit
+                    Long totalCombinedSessionTimeLimitMilli = subscription.getLong("TotalCombinedSessionTimeLimitMilli");
+                    log.info("Total Combined Session Time Limit Milliseconds: " + startDateEpochMilli);
+                    // terminate if past total combined session time
+                    if (elapsedMilli > totalCombinedSessionTimeLimitMilli) {
+                        log.info("Terminating for past total combined time limit: " + totalCombinedSessionTimeLimitMilli);
+                        SessionStatus newStatus = appstreamSession.terminate(new TerminateSessionInput());
+                        session.withString("AppStreamSessionState", newStatus.getState().toString());
                     }
-                } catch (ApplicationNotFoundException e) {
-                    log.error(e);
                 }
+                break;
+        }
+        // ended and expired sessions leave the open sessions index
+        if (openSessionsIndex.isClosed(session)) {
+            openSessionsIndex.markClosed(session);
+        }
+        // save changed attributes only, then check again at the next time limit, or shortly after a termination to
+        // record the end
+        UpdateItemSpec sessionUpdate = sessionChanges.toUpdateItemSpec();
+        if (sessionUpdate == null) {
+            sessionDeadlines.schedule(session, subscription);
+            return null;
+        }
+        Item endedSubscription = sessionChanges.isChanged("EndDateEpochMilli") ? subscription : null;
+        return () -> {
+            if (saveSession(session, sessionUpdate, endedSubscription)) {
+                sessionDeadlines.schedule(session, subscription);
+            } else {
+                sessionDeadlines.cancel(session);
+            }
+        };
+    }
+
+    /**
+     * Write the changes of a session, only while no other node has ended the session, and deduct its running time
+     * from its subscription if this write ended it.
+     * @param subscription the subscription to deduct the session's running time from, or null
+     * @return false if another node has ended the session
+     */
+    private boolean saveSession(Item session, UpdateItemSpec sessionUpdate, Item subscription) {
+        try {
+            entitlementServiceUserSessionTable.updateItem(sessionUpdate
+                    .withConditionExpression("attribute_not_exists(EndDateEpochMilli)"));
+            if (subscription != null) {
+                deductSessionTime(subscription, session.getLong("EndDateEpochMilli") - session.getLong("StartDateEpochMilli"));
+            }
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            log.info("Session " + session.getString("AppStreamSessionId") + " was ended by another node");
+            return false;
+        }
+    }
+
+    /**
+     * Deduct the running time of an ended session from the remaining time of its subscription. The deduction is an
+     * atomic ADD, so deductions of concurrent nodes for different sessions are not lost. It is only made by the node
+     * whose write of the session's EndDateEpochMilli succeeded, so a session is deducted once.
+     * @param subscription the subscription, updated in place; may be shared by the writes of several sessions
+     * @param sessionTimeMilli running time of the session
+     */
+    private void deductSessionTime(Item subscription, long sessionTimeMilli) {
+        log.info("Deducting session time from subscription: " + sessionTimeMilli);
+        try {
+            entitlementServiceUserSubscriptionTable.updateItem(new UpdateItemSpec()
+                    .withPrimaryKey("UserId", subscription.getString("UserId"), "CreationTimeMilli", subscription.getLong("CreationTimeMilli"))
+                    .withUpdateExpression("ADD TotalCombinedSessionTimeLimitMilli :sessionTime")
+                    .withConditionExpression("attribute_exists(UserId)")
+                    .withValueMap(new ValueMap().withLong(":sessionTime", -sessionTimeMilli)));
+            synchronized (subscription) {
+                subscription.withLong("TotalCombinedSessionTimeLimitMilli", subscription.getLong("TotalCombinedSessionTimeLimitMilli") - sessionTimeMilli);
+            }
+            log.info("Remaining Combined Session Limit Milliseconds: " + subscription.getLong("TotalCombinedSessionTimeLimitMilli"));
+        } catch (ConditionalCheckFailedException e) {
+            log.info("Subscription was deleted: " + subscription.getString("UserId") + subscription.getLong("CreationTimeMilli"));
+        }
+    }
+
+    /**
+     * Read the subscriptions of sessions that are not read yet with as few batch reads as possible.
+     * @param sessions sessions with UserId and UserSubscriptionCreationTimeMilli
+     * @param subscriptions subscriptions by {@link #subscriptionKey}; null for subscriptions that do not exist
+     */
+    private void readSubscriptions(List<Item> sessions, Map<String, Item> subscriptions) {
+        List<PrimaryKey> keys = new ArrayList<>();
+        for (Item session : sessions) {
+            String key = subscriptionKey(session.getString("UserId"), session.getLong("UserSubscriptionCreationTimeMilli"));
+            if (!subscriptions.containsKey(key)) {
+                subscriptions.put(key, null);
+                keys.add(new PrimaryKey("UserId", session.getString("UserId"), "CreationTimeMilli", session.getLong("UserSubscriptionCreationTimeMilli")));
             }
         }
+        if (keys.isEmpty()) {
+            return;
+        }
+        for (Item subscription : batchReader.getItems(entitlementServiceUserSubscriptionTable, keys)) {
+            subscriptions.put(subscriptionKey(subscription.getString("UserId"), subscription.getLong("CreationTimeMilli")), subscription);
+        }
+    }
+
+    private String subscriptionKey(String userId, long creationTimeMilli) {
+        return userId + "/" + creationTimeMilli;
     }
 
     /**
-     * Retrieve an Application object from the AppStream service.
+     * Retrieve an Application object from the AppStream service through the shared {@link ApplicationCache}.
      * @param applicationId AppStream application id
      * @return an AppStream Application
      * @throws ApplicationNotFoundException
      */
     public Application getApplication(String applicationId)
             throws ApplicationNotFoundException {
-        try {
-            return appstream.getApplications().getById(applicationId);
-        } catch (Exception e) {
-            log.error(e);
-
-            throw new ApplicationNotFoundException("The application identified by " + applicationId + " was not found.");
-        }
+        return applicationCache.getApplication(applicationId);
     }
 }
@@ -0,0 +1,23 @@
+package com.amazonaws.sample.entitlement.tasks;
+
+import com.amazonaws.sample.entitlement.services.ApplicationCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Reloads the cached AppStream applications before they expire, so that requests do not wait for AppStream.
+ */
+@Component
+public class ApplicationCacheRefreshTask {
+
+    @Autowired
+    private ApplicationCache applicationCache;
+
+    @Scheduled(fixedRateString = "${applicationCacheRefreshIntervalMilli:60000}",
+            initialDelayString = "${applicationCacheRefreshIntervalMilli:60000}")
+    public void refreshApplications() {
+        applicationCache.refresh();
+    }
+
+}
@@ -0,0 +1,27 @@
+package com.amazonaws.sample.entitlement.tasks;
+
+import com.amazonaws.sample.entitlement.authorization.CognitoIdentityAuthorizationHandler;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Renews cached Cognito OpenID tokens of active users ahead of their expiry so that their requests do not wait on
+ * Amazon Cognito. Only has an effect when cognitoTokenRefreshAhead is enabled.
+ */
+@Component
+public class CognitoTokenRefreshTask {
+
+    @Autowired
+    private CognitoIdentityAuthorizationHandler cognitoIdentityAuthorizationHandler;
+
+    @Value("${cognitoTokenRefreshIntervalMilli:60000}")
+    private long cognitoTokenRefreshIntervalMilli;
+
+    @Scheduled(fixedRateString = "${cognitoTokenRefreshIntervalMilli:60000}")
+    public void refreshCognitoTokens() {
+        cognitoIdentityAuthorizationHandler.refreshCognitoTokens(cognitoTokenRefreshIntervalMilli);
+    }
+
+}
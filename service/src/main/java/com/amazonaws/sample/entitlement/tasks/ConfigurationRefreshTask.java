@@ -1,5 +1,6 @@
 package com.amazonaws.sample.entitlement.tasks;
 
+import com.amazonaws.sample.entitlement.dynamodb.CapacityLimiter;
 import com.amazonaws.services.dynamodbv2.document.*;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -36,6 +37,10 @@ public class ConfigurationRefreshTask {
 
     @Scheduled(fixedRate = 20000)
     public void getConfiguration() {
+        CapacityLimiter.runInBackground(this::refreshConfiguration);
+    }
+
+    private void refreshConfiguration() {
         log.info("Running Configuration Refresh Task");
         Item item = entitlementServiceConfigurationTable.getItem("StackId", stackName);
         Iterator<Map.Entry<String, Object>> iterator = item.attributes().iterator();
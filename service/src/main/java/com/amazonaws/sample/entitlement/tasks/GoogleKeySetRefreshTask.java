@@ -0,0 +1,23 @@
+package com.amazonaws.sample.entitlement.tasks;
+
+import com.amazonaws.sample.entitlement.authorization.GoogleIdTokenAuthorizationHandler;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Reloads the keys used to verify Google ID tokens so that key rotations by Google are picked up.
+ */
+@Component
+public class GoogleKeySetRefreshTask {
+
+    @Autowired
+    private GoogleIdTokenAuthorizationHandler googleIdTokenAuthorizationHandler;
+
+    @Scheduled(fixedRateString = "${googleJwksRefreshIntervalMilli:3600000}",
+            initialDelayString = "${googleJwksRefreshIntervalMilli:3600000}")
+    public void refreshKeys() {
+        googleIdTokenAuthorizationHandler.refreshKeys();
+    }
+
+}
@@ -0,0 +1,26 @@
+package com.amazonaws.sample.entitlement.tasks;
+
+import com.amazonaws.sample.entitlement.http.ProviderHttpClient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Closes expired and idle connections in the OAuth2 provider connection pools.
+ */
+@Component
+public class HttpConnectionEvictionTask {
+
+    @Autowired
+    private List<ProviderHttpClient> providerHttpClients;
+
+    @Scheduled(fixedRate = 10000)
+    public void evictIdleConnections() {
+        for (ProviderHttpClient providerHttpClient : providerHttpClients) {
+            providerHttpClient.evictIdleConnections();
+        }
+    }
+
+}
@@ -0,0 +1,23 @@
+package com.amazonaws.sample.entitlement.tasks;
+
+import com.amazonaws.sample.entitlement.dynamodb.CapacityLimiter;
+import com.amazonaws.sample.entitlement.services.UserItemCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Rebuilds the filter of known users from the user table, dropping deleted users from it.
+ */
+@Component
+public class KnownUsersRebuildTask {
+
+    @Autowired
+    private UserItemCache userItemCache;
+
+    @Scheduled(fixedRateString = "${userFilterRebuildIntervalMilli:300000}")
+    public void rebuildKnownUsers() {
+        CapacityLimiter.runInBackground(userItemCache::rebuildKnownUsers);
+    }
+
+}
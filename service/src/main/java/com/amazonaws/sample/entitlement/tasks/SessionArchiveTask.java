@@ -0,0 +1,76 @@
+package com.amazonaws.sample.entitlement.tasks;
+
+import com.amazonaws.sample.entitlement.dynamodb.BatchWriter;
+import com.amazonaws.sample.entitlement.dynamodb.CapacityLimiter;
+import com.amazonaws.sample.entitlement.dynamodb.ParallelScanner;
+import com.amazonaws.services.dynamodbv2.document.*;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.aws.core.env.ResourceIdResolver;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.inject.Inject;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves sessions that ended or expired more than sessionArchiveAgeMilli ago from the session table to the session
+ * history table, so that the session table only grows with recent activity. Each page of sessions is first put into
+ * the history table and then deleted from the session table, both with BatchWriteItem. A run that stops in between
+ * leaves the sessions in both tables and the next run moves them again.
+ */
+@Component
+public class SessionArchiveTask {
+
+    @Inject private ParallelScanner parallelScanner;
+    @Inject private BatchWriter batchWriter;
+
+    @Value("${sessionArchiveAgeMilli:2592000000}") private long sessionArchiveAgeMilli;
+
+    private Table entitlementServiceUserSessionTable;
+    private Table entitlementServiceUserSessionHistoryTable;
+
+    private Logger log = Logger.getLogger(SessionArchiveTask.class.getName());
+
+    @Inject
+    public SessionArchiveTask(ResourceIdResolver resourceIdResolver, DynamoDB dynamoDBDocument) {
+        this.entitlementServiceUserSessionTable = dynamoDBDocument.getTable(resourceIdResolver.resolveToPhysicalResourceId("EntitlementServiceUserSession"));
+        this.entitlementServiceUserSessionHistoryTable = dynamoDBDocument.getTable(resourceIdResolver.resolveToPhysicalResourceId("EntitlementServiceUserSessionHistory"));
+    }
+
+    @Scheduled(fixedRateString = "${sessionArchiveIntervalMilli:3600000}",
+            initialDelayString = "${sessionArchiveIntervalMilli:3600000}")
+    public void archiveSessions() {
+        CapacityLimiter.runInBackground(this::moveSessions);
+    }
+
+    private void moveSessions() {
+        long cutoff = Instant.now().toEpochMilli() - sessionArchiveAgeMilli;
+        int count = 0;
+        // expired sessions never started, so they have no end date
+        try (ParallelScanner.Pages pages = parallelScanner.scan(entitlementServiceUserSessionTable, "EntitlementServiceUserSession",
+                () -> new ScanSpec()
+                        .withFilterExpression("EndDateEpochMilli < :cutoff OR (attribute_exists(AppStreamEntitlementExpired) AND CreationTimeMilli < :cutoff)")
+                        .withValueMap(new ValueMap().withLong(":cutoff", cutoff)),
+                false)) {
+            while (pages.hasNext()) {
+                List<Item> sessions = new ArrayList<>();
+                List<PrimaryKey> keys = new ArrayList<>();
+                for (Item session : pages.next()) {
+                    // the entitlement URL is no longer valid and takes most of the item's size
+                    sessions.add(session.removeAttribute("AppStreamEntitlementUrl"));
+                    keys.add(new PrimaryKey("UserId", session.getString("UserId"), "CreationTimeMilli", session.getLong("CreationTimeMilli")));
+                }
+                batchWriter.putItems(entitlementServiceUserSessionHistoryTable, sessions);
+                batchWriter.deleteItems(entitlementServiceUserSessionTable, keys);
+                count += sessions.size();
+            }
+        }
+        log.info("Archived " + count + " sessions");
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.amazonaws.sample.entitlement.authorization;
+
+import com.amazonaws.sample.entitlement.exceptions.OAuthBadTokenException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Verifies ID tokens signed with local RSA keys against a key set loaded from a file: URI.
+ */
+public class GoogleIdTokenAuthorizationHandlerTest {
+
+    private static final String CLIENT_ID = "test-client.apps.googleusercontent.com";
+
+    private KeyPair keyPair;
+    private File jwksFile;
+    private GoogleIdTokenAuthorizationHandler handler;
+
+    @Before
+    public void setUp() throws Exception {
+        keyPair = generateKeyPair();
+        jwksFile = File.createTempFile("jwks", ".json");
+        writeKeySet("key-1", keyPair);
+
+        Properties cognitoProperties = new Properties();
+        cognitoProperties.setProperty("loginWithGoogleClientId", CLIENT_ID);
+        handler = new GoogleIdTokenAuthorizationHandler();
+        ReflectionTestUtils.setField(handler, "cognitoProperties", cognitoProperties);
+        ReflectionTestUtils.setField(handler, "googleJwksUri", jwksFile.toURI().toString());
+        ReflectionTestUtils.setField(handler, "googleIdTokenClockSkewSeconds", 60L);
+        ReflectionTestUtils.setField(handler, "googleJwksMinRefreshIntervalMilli", 60000L);
+        handler.initializeKeys();
+    }
+
+    @After
+    public void tearDown() {
+        jwksFile.delete();
+    }
+
+    @Test
+    public void acceptsValidToken() throws Exception {
+        Identity identity = handler.verifyAccessToken(token("key-1", keyPair, CLIENT_ID, expiresInSeconds(3600)));
+        assertEquals("1234567890", identity.getId());
+        assertEquals("user@example.com", identity.getEmail());
+    }
+
+    @Test(expected = OAuthBadTokenException.class)
+    public void rejectsTokenSignedWithAnotherKey() throws Exception {
+        handler.verifyAccessToken(token("key-1", generateKeyPair(), CLIENT_ID, expiresInSeconds(3600)));
+    }
+
+    @Test(expected = OAuthBadTokenException.class)
+    public void rejectsExpiredToken() throws Exception {
+        handler.verifyAccessToken(token("key-1", keyPair, CLIENT_ID, expiresInSeconds(-120)));
+    }
+
+    @Test(expected = OAuthBadTokenException.class)
+    public void rejectsTokenForAnotherClient() throws Exception {
+        handler.verifyAccessToken(token("key-1", keyPair, "other-client", expiresInSeconds(3600)));
+    }
+
+    @Test
+    public void reloadsKeysForUnknownKeyId() throws Exception {
+        KeyPair rotated = generateKeyPair();
+        writeKeySet("key-2", rotated);
+        Identity identity = handler.verifyAccessToken(token("key-2", rotated, CLIENT_ID, expiresInSeconds(3600)));
+        assertEquals("1234567890", identity.getId());
+    }
+
+    @Test(expected = OAuthBadTokenException.class)
+    public void limitsReloadsForUnknownKeyIds() throws Exception {
+        try {
+            handler.verifyAccessToken(token("key-2", keyPair, CLIENT_ID, expiresInSeconds(3600)));
+        } catch (OAuthBadTokenException e) {
+            // the key set was just reloaded, so the key written now is only picked up by the next reload
+        }
+        KeyPair rotated = generateKeyPair();
+        writeKeySet("key-3", rotated);
+        handler.verifyAccessToken(token("key-3", rotated, CLIENT_ID, expiresInSeconds(3600)));
+    }
+
+    //-------------------------------------------------------------
+    // Methods - Private
+    //-------------------------------------------------------------
+
+    private static KeyPair generateKeyPair() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        return generator.generateKeyPair();
+    }
+
+    private void writeKeySet(String kid, KeyPair keys) throws Exception {
+        RSAPublicKey publicKey = (RSAPublicKey) keys.getPublic();
+        String jwks = "{\"keys\":[{\"kty\":\"RSA\",\"alg\":\"RS256\",\"use\":\"sig\",\"kid\":\"" + kid + "\","
+                + "\"n\":\"" + base64Url(unsigned(publicKey.getModulus())) + "\","
+                + "\"e\":\"" + base64Url(unsigned(publicKey.getPublicExponent())) + "\"}]}";
+        Files.write(jwksFile.toPath(), jwks.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String token(String kid, KeyPair keys, String audience, long expires) throws Exception {
+        String header = "{\"alg\":\"RS256\",\"kid\":\"" + kid + "\"}";
+        String claims = "{\"iss\":\"https://accounts.google.com\",\"aud\":\"" + audience + "\","
+                + "\"sub\":\"1234567890\",\"email\":\"user@example.com\",\"email_verified\":true,"
+                + "\"exp\":" + expires + "}";
+        String signedContent = base64Url(header.getBytes(StandardCharsets.UTF_8)) + "."
+                + base64Url(claims.getBytes(StandardCharsets.UTF_8));
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(keys.getPrivate());
+        signer.update(signedContent.getBytes(StandardCharsets.US_ASCII));
+        return signedContent + "." + base64Url(signer.sign());
+    }
+
+    private static long expiresInSeconds(long seconds) {
+        return Instant.now().getEpochSecond() + seconds;
+    }
+
+    private static byte[] unsigned(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        return bytes[0] == 0 ? Arrays.copyOfRange(bytes, 1, bytes.length) : bytes;
+    }
+
+    private static String base64Url(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.amazonaws.sample.entitlement.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BloomFilterTest {
+
+    @Test
+    public void containsEveryAddedString() {
+        BloomFilter filter = new BloomFilter(1000, 0.01);
+        for (int i = 0; i < 1000; i++) {
+            filter.add("us-east-1:" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mightContain("us-east-1:" + i));
+        }
+    }
+
+    @Test
+    public void emptyFilterContainsNothing() {
+        BloomFilter filter = new BloomFilter(1000, 0.01);
+        assertFalse(filter.mightContain("us-east-1:0"));
+        assertFalse(filter.mightContain(""));
+    }
+
+    @Test
+    public void falsePositiveRateIsNearConfiguredRate() {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.add("user" + i + "@example.com");
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.mightContain("other" + i + "@example.com")) {
+                falsePositives++;
+            }
+        }
+        assertTrue("false positive rate " + falsePositives / 100000.0, falsePositives < 2000);
+    }
+
+    @Test
+    public void toleratesDegenerateSizes() {
+        BloomFilter filter = new BloomFilter(0, 0.5);
+        filter.add("a");
+        assertTrue(filter.mightContain("a"));
+    }
+}
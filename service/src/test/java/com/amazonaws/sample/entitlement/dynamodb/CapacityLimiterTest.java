@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.amazonaws.sample.entitlement.dynamodb;
+
+import com.amazonaws.sample.entitlement.dynamodb.CapacityLimiter.Lane;
+import com.amazonaws.sample.entitlement.dynamodb.CapacityLimiter.TokenBucket;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Token bucket behavior at 1 unit per second, slow enough that refills during a test are negligible. The bucket holds
+ * at most 5 tokens, 1 of which is reserved for interactive requests, and starts with 1 token.
+ */
+public class CapacityLimiterTest {
+
+    private static final double DELTA = 0.1;
+
+    @Test
+    public void backgroundDebtDoesNotDelayInteractiveAcquire() throws Exception {
+        TokenBucket bucket = bucket();
+        bucket.take(10, Lane.BACKGROUND);
+        assertEquals(10, bucket.getBackgroundDebt(), DELTA);
+
+        long waitedMilli = bucket.acquire(0.5, Lane.INTERACTIVE);
+        assertTrue("waited " + waitedMilli + " ms", waitedMilli < 100);
+        assertEquals(0.5, bucket.getTokens(), DELTA);
+    }
+
+    @Test
+    public void backgroundTakesOnlyTokensAboveReserve() {
+        TokenBucket bucket = bucket();
+        bucket.take(-3, Lane.INTERACTIVE);
+        bucket.take(2, Lane.BACKGROUND);
+        assertEquals(2, bucket.getTokens(), DELTA);
+        assertEquals(0, bucket.getBackgroundDebt(), DELTA);
+
+        bucket.take(3, Lane.BACKGROUND);
+        assertEquals(1, bucket.getTokens(), DELTA);
+        assertEquals(2, bucket.getBackgroundDebt(), DELTA);
+    }
+
+    @Test
+    public void refundRepaysBackgroundDebtFirst() {
+        TokenBucket bucket = bucket();
+        bucket.take(10, Lane.BACKGROUND);
+        bucket.take(-4, Lane.BACKGROUND);
+        assertEquals(6, bucket.getBackgroundDebt(), DELTA);
+        assertEquals(1, bucket.getTokens(), DELTA);
+
+        bucket.take(-8, Lane.BACKGROUND);
+        assertEquals(0, bucket.getBackgroundDebt(), DELTA);
+        assertEquals(3, bucket.getTokens(), DELTA);
+    }
+
+    @Test
+    public void debtIsRepaidFromTokensAboveReserve() {
+        TokenBucket bucket = bucket();
+        bucket.take(2, Lane.BACKGROUND);
+        bucket.take(-2, Lane.INTERACTIVE);
+        assertEquals(0, bucket.getBackgroundDebt(), DELTA);
+        assertEquals(1, bucket.getTokens(), DELTA);
+    }
+
+    @Test
+    public void throttlingEmptiesTheBucket() {
+        TokenBucket bucket = bucket();
+        bucket.throttled();
+        assertEquals(-1, bucket.getTokens(), DELTA);
+    }
+
+    private static TokenBucket bucket() {
+        return new TokenBucket("test", 5, 0.2, 10000, (name, value) -> { });
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.amazonaws.sample.entitlement.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ItemChangesTest {
+
+    @Test
+    public void unchangedItemIsNotWritten() {
+        ItemChanges changes = new ItemChanges(session(), "UserId", "CreationTimeMilli");
+        assertFalse(changes.isDirty());
+        assertNull(changes.toUpdateItemSpec());
+    }
+
+    @Test
+    public void numbersWithDifferentScalesAreEqual() {
+        Item session = session().withNumber("StartDateEpochMilli", new BigDecimal("1500.00"));
+        ItemChanges changes = new ItemChanges(session, "UserId", "CreationTimeMilli");
+        session.withLong("StartDateEpochMilli", 1500L);
+        assertFalse(changes.isChanged("StartDateEpochMilli"));
+        assertFalse(changes.isDirty());
+    }
+
+    @Test
+    public void setsChangedAndRemovesRemovedAttributes() {
+        Item session = session().withLong("StartDateEpochMilli", 1500L);
+        ItemChanges changes = new ItemChanges(session, "UserId", "CreationTimeMilli");
+        session.withString("AppStreamSessionState", "Terminated")
+                .removeAttribute("StartDateEpochMilli");
+        session.withLong("EndDateEpochMilli", 2500L);
+
+        UpdateItemSpec spec = changes.toUpdateItemSpec();
+        assertEquals("SET #a0 = :v0, #a1 = :v1 REMOVE #a2", spec.getUpdateExpression());
+        assertEquals("AppStreamSessionState", spec.getNameMap().get("#a0"));
+        assertEquals("EndDateEpochMilli", spec.getNameMap().get("#a1"));
+        assertEquals("StartDateEpochMilli", spec.getNameMap().get("#a2"));
+        assertEquals("Terminated", spec.getValueMap().get(":v0"));
+        assertEquals(0, new BigDecimal(2500).compareTo(new BigDecimal(spec.getValueMap().get(":v1").toString())));
+        assertEquals(2, spec.getKeyComponents().size());
+    }
+
+    @Test
+    public void removesRemovedAttributes() {
+        Item session = session().withBoolean("AppStreamEntitlementExpired", true);
+        ItemChanges changes = new ItemChanges(session, "UserId", "CreationTimeMilli");
+        session.removeAttribute("AppStreamEntitlementExpired");
+
+        assertTrue(changes.isDirty());
+        UpdateItemSpec spec = changes.toUpdateItemSpec();
+        assertEquals("REMOVE #a0", spec.getUpdateExpression());
+        assertEquals("AppStreamEntitlementExpired", spec.getNameMap().get("#a0"));
+    }
+
+    @Test
+    public void writesOnlyChangedAttributes() {
+        Item session = session();
+        ItemChanges changes = new ItemChanges(session, "UserId", "CreationTimeMilli");
+        session.withString("Email", "other@example.com");
+
+        UpdateItemSpec spec = changes.toUpdateItemSpec();
+        assertEquals("SET #a0 = :v0", spec.getUpdateExpression());
+        assertEquals("Email", spec.getNameMap().get("#a0"));
+    }
+
+    private static Item session() {
+        return new Item()
+                .withPrimaryKey("UserId", "user-1", "CreationTimeMilli", 1000L)
+                .withString("Email", "user@example.com")
+                .withString("AppStreamSessionState", "Active");
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.amazonaws.sample.entitlement.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.KeyAttribute;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class ScanCursorTest {
+
+    @Test
+    public void roundTripsStringAndNumberKeys() {
+        Map<String, AttributeValue> lastEvaluatedKey = new HashMap<>();
+        lastEvaluatedKey.put("UserId", new AttributeValue().withS("us-east-1:0000-1111"));
+        lastEvaluatedKey.put("CreationTimeMilli", new AttributeValue().withN("1431000000123"));
+
+        String cursor = ScanCursor.encode(lastEvaluatedKey);
+        assertFalse(cursor.matches(".*[+/=].*"));
+
+        Map<String, Object> key = components(ScanCursor.decode(cursor));
+        assertEquals(2, key.size());
+        assertEquals("us-east-1:0000-1111", key.get("UserId"));
+        assertEquals(new BigDecimal("1431000000123"), key.get("CreationTimeMilli"));
+    }
+
+    @Test
+    public void roundTripsBinaryKeys() {
+        byte[] bytes = {0, 1, (byte) 0xfe, (byte) 0xff};
+        Map<String, AttributeValue> lastEvaluatedKey = new HashMap<>();
+        lastEvaluatedKey.put("Id", new AttributeValue().withB(ByteBuffer.wrap(bytes)));
+
+        Map<String, Object> key = components(ScanCursor.decode(ScanCursor.encode(lastEvaluatedKey)));
+        assertArrayEquals(bytes, (byte[]) key.get("Id"));
+    }
+
+    @Test
+    public void lastPageHasNoCursor() {
+        assertNull(ScanCursor.encode(null));
+        assertNull(ScanCursor.encode(new HashMap<>()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMalformedCursor() {
+        ScanCursor.decode("not a cursor");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCursorWithoutKey() {
+        ScanCursor.decode("e30");
+    }
+
+    private static Map<String, Object> components(PrimaryKey primaryKey) {
+        Map<String, Object> components = new HashMap<>();
+        for (KeyAttribute component : primaryKey.getComponents()) {
+            components.put(component.getName(), component.getValue());
+        }
+        return components;
+    }
+}
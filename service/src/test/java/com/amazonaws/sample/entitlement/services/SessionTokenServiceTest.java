@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Amazon Software License (the "License"). You may not use
+ * this file except in compliance with the License. A copy of the License is
+ * located at:
+ *
+ *       http://aws.amazon.com/asl/
+ *
+ * This Software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.amazonaws.sample.entitlement.services;
+
+import com.amazonaws.sample.entitlement.exceptions.AuthorizationException;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SessionTokenServiceTest {
+
+    private static final String KEY = Base64.getEncoder().encodeToString("0123456789abcdef0123456789abcdef".getBytes());
+    private static final String OTHER_KEY = Base64.getEncoder().encodeToString("fedcba9876543210fedcba9876543210".getBytes());
+
+    private Properties cognitoProperties;
+    private SessionTokenService sessionTokenService;
+
+    @Before
+    public void setUp() {
+        cognitoProperties = new Properties();
+        cognitoProperties.setProperty("sessionTokenKeyId", "k1");
+        cognitoProperties.setProperty("sessionTokenKey", KEY);
+        sessionTokenService = new SessionTokenService();
+        ReflectionTestUtils.setField(sessionTokenService, "cognitoProperties", cognitoProperties);
+        ReflectionTestUtils.setField(sessionTokenService, "sessionTokenTtlSeconds", 900L);
+    }
+
+    @Test
+    public void verifiesIssuedToken() throws Exception {
+        String authorization = authorization(sessionTokenService.issue(user(), null));
+        assertTrue(sessionTokenService.isSessionToken(authorization));
+
+        Item user = sessionTokenService.verify(authorization);
+        assertEquals("us-east-1:0000-1111", user.getString("id"));
+        assertEquals("user@example.com", user.getString("email"));
+        assertEquals("admin", user.getString("role"));
+    }
+
+    @Test(expected = AuthorizationException.class)
+    public void rejectsExpiredToken() throws Exception {
+        String token = sessionTokenService.issue(user(), Instant.now().toEpochMilli() - 1);
+        sessionTokenService.verify(authorization(token));
+    }
+
+    @Test(expected = AuthorizationException.class)
+    public void rejectsChangedClaims() throws Exception {
+        String[] parts = sessionTokenService.issue(user(), null).split("\\.");
+        String claims = new String(Base64.getUrlDecoder().decode(parts[1])).replace("admin", "root");
+        String forged = parts[0] + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(claims.getBytes())
+                + "." + parts[2];
+        sessionTokenService.verify(authorization(forged));
+    }
+
+    @Test(expected = AuthorizationException.class)
+    public void rejectsTokenSignedWithAnotherKey() throws Exception {
+        String token = sessionTokenService.issue(user(), null);
+        cognitoProperties.setProperty("sessionTokenKey", OTHER_KEY);
+        sessionTokenService.verify(authorization(token));
+    }
+
+    @Test
+    public void acceptsPreviousKeyAfterRotation() throws Exception {
+        String token = sessionTokenService.issue(user(), null);
+        cognitoProperties.setProperty("sessionTokenPreviousKeyId", "k1");
+        cognitoProperties.setProperty("sessionTokenPreviousKey", KEY);
+        cognitoProperties.setProperty("sessionTokenKeyId", "k2");
+        cognitoProperties.setProperty("sessionTokenKey", OTHER_KEY);
+        assertEquals("us-east-1:0000-1111", sessionTokenService.verify(authorization(token)).getString("id"));
+    }
+
+    @Test
+    public void issuesNothingWithoutKey() {
+        cognitoProperties.remove("sessionTokenKey");
+        assertFalse(sessionTokenService.isEnabled());
+        assertNull(sessionTokenService.issue(user(), null));
+    }
+
+    private static Item user() {
+        return new Item()
+                .withPrimaryKey("id", "us-east-1:0000-1111")
+                .withString("email", "user@example.com")
+                .withString("role", "admin");
+    }
+
+    private static String authorization(String token) {
+        return SessionTokenService.AUTHORIZATION_TYPE + " " + token;
+    }
+}